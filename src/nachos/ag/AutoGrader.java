@@ -249,6 +249,22 @@ public class AutoGrader {
 	return null;
     }
 
+    /**
+     * Notify the autograder that the kernel read a page back into main memory
+     * from swap. The page is counted in the machine's statistics.
+     */
+    public void pageSwappedIn() {
+	privilege.stats.numSwapIns++;
+    }
+
+    /**
+     * Notify the autograder that the kernel wrote a page out of main memory
+     * to swap. The page is counted in the machine's statistics.
+     */
+    public void pageSwappedOut() {
+	privilege.stats.numSwapOuts++;
+    }
+
     /**
      * Request permission to send a packet. The autograder can use this to drop
      * packets very selectively.
@@ -0,0 +1,74 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures the latency of <tt>Alarm.waitUntil()</tt>: how many ticks late a
+ * sleeping thread wakes up, and how much wall-clock time the simulation
+ * spends getting there. With more than one thread, the threads sleep for
+ * random lengths of time, so that many of them are asleep at once.
+ */
+public class AlarmBenchmark extends Benchmark {
+    /**
+     * Allocate a new alarm benchmark.
+     */
+    public AlarmBenchmark() {
+	super("alarm");
+
+	iterations = getInteger("iterations", 1000);
+	delay = getInteger("delay", 1000);
+	threads = getInteger("threads", 1);
+    }
+
+    /**
+     * Fork <tt>Benchmark.alarm.threads</tt> threads that each sleep
+     * <tt>Benchmark.alarm.iterations</tt> times, and report the mean and
+     * worst wakeup latency. A single thread sleeps for
+     * <tt>Benchmark.alarm.delay</tt> ticks each time; several threads sleep
+     * for a random time between half and one and a half times that.
+     *
+     * @return	the total number of waits.
+     */
+    public int run() {
+	KThread[] sleepers = new KThread[threads];
+
+	for (int i=0; i<threads; i++) {
+	    sleepers[i] = new KThread(new Sleeper()).setName("sleeper " + i);
+	    sleepers[i].fork();
+	}
+	for (int i=0; i<threads; i++)
+	    sleepers[i].join();
+
+	reportDetail("wakeup latency mean="
+		     + (totalLatency / (iterations * threads))
+		     + " max=" + maxLatency + " ticks");
+
+	return iterations * threads;
+    }
+
+    private class Sleeper implements Runnable {
+	public void run() {
+	    for (int i=0; i<iterations; i++) {
+		long ticks = delay;
+		if (threads > 1)
+		    ticks += Lib.random(delay) - delay/2;
+
+		long wakeTime = Machine.timer().getTime() + ticks;
+		ThreadedKernel.alarm.waitUntil(ticks);
+
+		long latency = Machine.timer().getTime() - wakeTime;
+		Lib.assertTrue(latency >= 0);
+
+		totalLatency += latency;
+		maxLatency = Math.max(maxLatency, latency);
+	    }
+	}
+    }
+
+    private int iterations;
+    private int delay;
+    private int threads;
+
+    private long totalLatency = 0, maxLatency = 0;
+}
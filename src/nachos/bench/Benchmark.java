@@ -0,0 +1,100 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+/**
+ * A benchmark of some part of the simulated machine or of the kernel running
+ * on it. A benchmark performs some number of operations, and is measured both
+ * in host wall-clock time and in simulated ticks, so that changes to the
+ * simulation can be compared against changes to the simulated system.
+ */
+public abstract class Benchmark {
+    /**
+     * Allocate a new benchmark.
+     *
+     * @param	name	the name of this benchmark, used in its report and in
+     *			its configuration keys.
+     */
+    public Benchmark(String name) {
+	this.name = name;
+    }
+
+    /**
+     * Return the name of this benchmark.
+     *
+     * @return	the name of this benchmark.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Run this benchmark once in the current thread.
+     *
+     * @return	the number of operations performed.
+     */
+    public abstract int run();
+
+    /**
+     * Run this benchmark once and print how many operations it performed,
+     * how long they took, and how many simulated ticks they took.
+     */
+    public void measure() {
+	long startTicks = Machine.timer().getTime();
+	long startTime = System.nanoTime();
+
+	int operations = run();
+
+	long wallNanos = System.nanoTime() - startTime;
+	long ticks = Machine.timer().getTime() - startTicks;
+
+	report(operations, wallNanos, ticks);
+    }
+
+    /**
+     * Print the results of a single run of this benchmark.
+     *
+     * @param	operations	the number of operations performed.
+     * @param	wallNanos	the wall-clock time taken, in nanoseconds.
+     * @param	ticks		the number of simulated ticks taken.
+     */
+    protected void report(int operations, long wallNanos, long ticks) {
+	double seconds = wallNanos / 1e9;
+
+	System.out.println("Benchmark " + name + ": " + operations + " ops in "
+			   + (wallNanos / 1000000) + " ms, "
+			   + rate(operations, seconds) + " ops/s, "
+			   + ticks + " ticks ("
+			   + rate(ticks, seconds) + " ticks/s, "
+			   + (operations > 0 ? ticks / operations : 0)
+			   + " ticks/op)");
+    }
+
+    /**
+     * Print an additional result line for this benchmark.
+     *
+     * @param	result	the result to print.
+     */
+    protected void reportDetail(String result) {
+	System.out.println("Benchmark " + name + ": " + result);
+    }
+
+    /**
+     * Return the value of <tt>Benchmark.<i>name</i>.<i>key</i></tt> from the
+     * configuration, or the default if it is not set.
+     *
+     * @param	key		the key, relative to this benchmark.
+     * @param	defaultValue	the value to use if the key is not set.
+     * @return	the configured integer.
+     */
+    protected int getInteger(String key, int defaultValue) {
+	return Config.getInteger("Benchmark." + name + "." + key,
+				 defaultValue);
+    }
+
+    private static long rate(long count, double seconds) {
+	return seconds > 0 ? (long) (count / seconds) : 0;
+    }
+
+    private String name;
+}
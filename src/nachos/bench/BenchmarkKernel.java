@@ -0,0 +1,96 @@
+package nachos.bench;
+
+import java.util.StringTokenizer;
+
+import nachos.machine.*;
+import nachos.userprog.*;
+import nachos.network.*;
+
+/**
+ * A kernel that runs a fixed set of benchmarks instead of a shell, and then
+ * halts. The benchmarks to run are listed, separated by commas, in
+ * <tt>Benchmark.names</tt>; each benchmark reads its own parameters from
+ * keys of the form <tt>Benchmark.<i>name</i>.<i>key</i></tt>.
+ */
+public class BenchmarkKernel extends UserKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public BenchmarkKernel() {
+	super();
+    }
+
+    /**
+     * Initialize this kernel. Creates a post office if the machine has a
+     * network link.
+     */
+    public void initialize(String[] args) {
+	super.initialize(args);
+
+	if (Machine.networkLink() != null)
+	    postOffice = new PostOffice();
+    }
+
+    /**
+     * The self tests are interactive, so a benchmark kernel skips them.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run each configured benchmark once, in order.
+     */
+    public void run() {
+	String names = Config.getString("Benchmark.names", defaultNames);
+	StringTokenizer tokenizer = new StringTokenizer(names, ",");
+
+	while (tokenizer.hasMoreTokens()) {
+	    String name = tokenizer.nextToken();
+	    Benchmark benchmark = createBenchmark(name);
+
+	    if (benchmark != null)
+		benchmark.measure();
+	}
+    }
+
+    /**
+     * Create the benchmark with the specified name.
+     *
+     * @param	name	the name of the benchmark.
+     * @return	the benchmark, or <tt>null</tt> if it cannot run on this
+     *		machine.
+     */
+    protected Benchmark createBenchmark(String name) {
+	if (name.equals("instructions"))
+	    return new InstructionBenchmark();
+	else if (name.equals("syscall"))
+	    return new SyscallBenchmark();
+	else if (name.equals("contextSwitch"))
+	    return new ContextSwitchBenchmark();
+	else if (name.equals("fork"))
+	    return new ForkBenchmark();
+	else if (name.equals("handoff"))
+	    return new HandoffBenchmark();
+	else if (name.equals("alarm"))
+	    return new AlarmBenchmark();
+	else if (name.equals("share"))
+	    return new ShareBenchmark();
+	else if (name.equals("postOffice")) {
+	    if (postOffice == null) {
+		System.out.println("Benchmark postOffice: skipped, no network link");
+		return null;
+	    }
+	    return new PostOfficeBenchmark(postOffice);
+	}
+
+	Lib.assertNotReached("unknown benchmark: " + name);
+	return null;
+    }
+
+    private static final String defaultNames =
+	"instructions,syscall,contextSwitch,handoff,fork,alarm,share," +
+	"postOffice";
+
+    /** The post office, or <tt>null</tt> if there is no network link. */
+    public static PostOffice postOffice = null;
+}
@@ -0,0 +1,132 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A user process that a benchmark can wait for. A benchmark process can also
+ * replace its program's entry point with a tight loop of system calls, so
+ * that the cost of a system call round trip can be measured without a
+ * dedicated test program.
+ */
+public class BenchmarkProcess extends UserProcess {
+    /**
+     * Allocate a new benchmark process.
+     */
+    public BenchmarkProcess() {
+	super();
+    }
+
+    /**
+     * Make this process issue <i>count</i> <tt>close(-1)</tt> system calls
+     * and then exit, instead of running its program. Must be called before
+     * <tt>execute()</tt>.
+     *
+     * @param	count	the number of system calls to make.
+     */
+    public void setSyscallLoop(int count) {
+	Lib.assertTrue(count > 0);
+	syscallLoop = count;
+    }
+
+    /**
+     * Wait for this process to exit.
+     *
+     * @return	the status this process passed to <tt>exit()</tt>.
+     */
+    public int join() {
+	exited.P();
+	return exitStatus;
+    }
+
+    /**
+     * Load the program's sections, then overwrite its entry point with the
+     * system call loop if one was requested.
+     *
+     * @return	<tt>true</tt> if the sections were successfully loaded.
+     */
+    protected boolean loadSections() {
+	if (!super.loadSections())
+	    return false;
+
+	if (syscallLoop > 0) {
+	    int[] code = syscallLoopCode(syscallLoop);
+	    int pageSize = Processor.pageSize;
+	    byte[] memory = Machine.processor().getMemory();
+
+	    for (int i=0; i<code.length; i++) {
+		int vaddr = coff.getEntryPoint() + i*4;
+		int vpn = vaddr / pageSize;
+		Lib.assertTrue(vpn < numPages);
+
+		int paddr = pageTable[vpn].ppn*pageSize + vaddr%pageSize;
+		Lib.bytesFromInt(memory, paddr, code[i]);
+	    }
+	}
+
+	return true;
+    }
+
+    /**
+     * Handle a system call. A benchmark process handles <tt>exit()</tt>
+     * itself: it releases its resources, leaves the count of running
+     * processes that <tt>execute()</tt> added it to, and wakes up the waiting
+     * benchmark, but never terminates the kernel, even if it is the last
+     * process.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	if (syscall != syscallExit)
+	    return super.handleSyscall(syscall, a0, a1, a2, a3);
+
+	for (int i=0; i<descriptors.length; i++) {
+	    if (descriptors[i] != null) {
+		descriptors[i].close();
+		descriptors[i] = null;
+	    }
+	}
+	coff.close();
+	unloadSections();
+	numOfRunningProcess--;
+
+	exitStatus = a0;
+	exited.V();
+
+	UThread.finish();
+
+	Lib.assertNotReached();
+	return 0;
+    }
+
+    /**
+     * Assemble a loop that makes <i>count</i> <tt>close(-1)</tt> system
+     * calls, counting down in <tt>$s0</tt>, and then calls <tt>exit(0)</tt>.
+     */
+    private static int[] syscallLoopCode(int count) {
+	return new int[] {
+	    iType(0x0F, 0, s0, count >>> 16),		// lui   $s0, hi(count)
+	    iType(0x0D, s0, s0, count & 0xFFFF),	// ori   $s0, $s0, lo(count)
+	    iType(0x09, 0, a0, -1),			// addiu $a0, $0, -1
+	    iType(0x09, 0, v0, syscallClose),		// addiu $v0, $0, close
+	    0x0000000C,					// syscall
+	    iType(0x09, s0, s0, -1),			// addiu $s0, $s0, -1
+	    iType(0x07, s0, 0, -5),			// bgtz  $s0, loop
+	    0x00000000,					// nop
+	    iType(0x09, 0, a0, 0),			// addiu $a0, $0, 0
+	    iType(0x09, 0, v0, syscallExit),		// addiu $v0, $0, exit
+	    0x0000000C,					// syscall
+	};
+    }
+
+    private static int iType(int op, int rs, int rt, int imm) {
+	return (op << 26) | (rs << 21) | (rt << 16) | (imm & 0xFFFF);
+    }
+
+    private static final int v0 = 2, a0 = 4, s0 = 16;
+
+    private static final int syscallExit = 1, syscallClose = 8;
+
+    private int syscallLoop = 0;
+    private int exitStatus;
+    private Semaphore exited = new Semaphore(0);
+}
@@ -0,0 +1,48 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures the cost of a kernel context switch by having two threads yield
+ * to each other repeatedly. Each yield hands the processor from one
+ * <tt>TCB</tt> to the other, so nearly all of the wall-clock time is spent
+ * in <tt>TCB.contextSwitch()</tt>.
+ */
+public class ContextSwitchBenchmark extends Benchmark {
+    /**
+     * Allocate a new context switch benchmark.
+     */
+    public ContextSwitchBenchmark() {
+	super("contextSwitch");
+
+	iterations = getInteger("iterations", 10000);
+    }
+
+    /**
+     * Fork two threads that each yield
+     * <tt>Benchmark.contextSwitch.iterations</tt> times, and wait for both.
+     *
+     * @return	the total number of yields.
+     */
+    public int run() {
+	KThread ping = new KThread(new Yielder()).setName("ping");
+	KThread pong = new KThread(new Yielder()).setName("pong");
+
+	ping.fork();
+	pong.fork();
+	ping.join();
+	pong.join();
+
+	return iterations * 2;
+    }
+
+    private class Yielder implements Runnable {
+	public void run() {
+	    for (int i=0; i<iterations; i++)
+		KThread.yield();
+	}
+    }
+
+    private int iterations;
+}
@@ -0,0 +1,43 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures the cost of creating short-lived kernel threads. Each iteration
+ * forks a thread that does nothing and joins it, so nearly all of the
+ * wall-clock time is spent starting and destroying TCBs. Compare runs with
+ * and without a <tt>TCB.poolSize</tt> to see the effect of reusing Java
+ * threads.
+ */
+public class ForkBenchmark extends Benchmark {
+    /**
+     * Allocate a new fork benchmark.
+     */
+    public ForkBenchmark() {
+	super("fork");
+
+	iterations = getInteger("iterations", 1000);
+    }
+
+    /**
+     * Fork and join <tt>Benchmark.fork.iterations</tt> empty threads, one
+     * at a time.
+     *
+     * @return	the number of threads forked.
+     */
+    public int run() {
+	for (int i=0; i<iterations; i++) {
+	    KThread thread = new KThread(new Runnable() {
+		    public void run() { }
+		}).setName("fork " + i);
+
+	    thread.fork();
+	    thread.join();
+	}
+
+	return iterations;
+    }
+
+    private int iterations;
+}
@@ -0,0 +1,78 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures how many context switches the simulation can perform per second
+ * of wall-clock time when threads block and wake each other, rather than
+ * yield. A ring of threads passes a token around on semaphores: each thread
+ * waits for the token on its own semaphore and then hands it to the next
+ * thread, so every pass is a switch from a thread that goes to sleep to the
+ * thread it just woke.
+ *
+ * <p>
+ * The benchmark reports which handoff mechanism the TCBs used, so that runs
+ * with and without <tt>TCB.parkHandoff</tt> can be compared.
+ */
+public class HandoffBenchmark extends Benchmark {
+    /**
+     * Allocate a new handoff benchmark.
+     */
+    public HandoffBenchmark() {
+	super("handoff");
+
+	threads = getInteger("threads", 4);
+	rounds = getInteger("rounds", 5000);
+
+	Lib.assertTrue(threads > 0);
+    }
+
+    /**
+     * Pass a token <tt>Benchmark.handoff.rounds</tt> times around a ring of
+     * <tt>Benchmark.handoff.threads</tt> threads.
+     *
+     * @return	the number of times the token was passed.
+     */
+    public int run() {
+	Semaphore[] tokens = new Semaphore[threads];
+	for (int i=0; i<threads; i++)
+	    tokens[i] = new Semaphore(0);
+
+	KThread[] ring = new KThread[threads];
+	for (int i=0; i<threads; i++) {
+	    ring[i] = new KThread(new Passer(tokens[i],
+					     tokens[(i+1) % threads]))
+		.setName("handoff " + i);
+	    ring[i].fork();
+	}
+
+	tokens[0].V();
+
+	for (int i=0; i<threads; i++)
+	    ring[i].join();
+
+	reportDetail("TCB handoff: " + TCB.getHandoff());
+
+	return rounds * threads;
+    }
+
+    private class Passer implements Runnable {
+	Passer(Semaphore mine, Semaphore next) {
+	    this.mine = mine;
+	    this.next = next;
+	}
+
+	public void run() {
+	    for (int i=0; i<rounds; i++) {
+		mine.P();
+		next.V();
+	    }
+	}
+
+	private Semaphore mine, next;
+    }
+
+    private int threads;
+    private int rounds;
+}
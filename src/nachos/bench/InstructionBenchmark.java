@@ -0,0 +1,42 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+/**
+ * Measures instruction throughput by running a compute-bound user program to
+ * completion. Nearly every tick of such a program is a user instruction, so
+ * the reported ticks per second approximates simulated instructions per
+ * second.
+ */
+public class InstructionBenchmark extends Benchmark {
+    /**
+     * Allocate a new instruction throughput benchmark.
+     */
+    public InstructionBenchmark() {
+	super("instructions");
+
+	program = Config.getString("Benchmark.instructions.program",
+				   "matmult.coff");
+	runs = getInteger("runs", 1);
+    }
+
+    /**
+     * Run the program to completion <tt>Benchmark.instructions.runs</tt>
+     * times.
+     *
+     * @return	the number of times the program was run.
+     */
+    public int run() {
+	for (int i=0; i<runs; i++) {
+	    BenchmarkProcess process = new BenchmarkProcess();
+	    Lib.assertTrue(process.execute(program, new String[] { }),
+			   "could not run " + program);
+	    process.join();
+	}
+
+	return runs;
+    }
+
+    private String program;
+    private int runs;
+}
@@ -0,0 +1,64 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.network.*;
+
+/**
+ * Measures message throughput through a <tt>PostOffice</tt> by sending
+ * messages from one port to another on the local network link and receiving
+ * them in a second thread.
+ */
+public class PostOfficeBenchmark extends Benchmark {
+    /**
+     * Allocate a new post office benchmark.
+     *
+     * @param	postOffice	the post office to send messages through.
+     */
+    public PostOfficeBenchmark(PostOffice postOffice) {
+	super("postOffice");
+
+	this.postOffice = postOffice;
+	iterations = getInteger("iterations", 1000);
+    }
+
+    /**
+     * Send <tt>Benchmark.postOffice.iterations</tt> messages and wait for
+     * all of them to be received.
+     *
+     * @return	the number of messages delivered.
+     */
+    public int run() {
+	KThread receiver = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<iterations; i++)
+			postOffice.receive(dstPort);
+		}
+	    }).setName("receiver");
+
+	receiver.fork();
+
+	int link = Machine.networkLink().getLinkAddress();
+	byte[] contents = new byte[messageLength];
+
+	for (int i=0; i<iterations; i++) {
+	    try {
+		postOffice.send(new MailMessage(link, dstPort, link, srcPort,
+						contents));
+	    }
+	    catch (MalformedPacketException e) {
+		Lib.assertNotReached();
+	    }
+	}
+
+	receiver.join();
+
+	return iterations;
+    }
+
+    private static final int srcPort = 0, dstPort = 1;
+    private static final int messageLength = 16;
+
+    private PostOffice postOffice;
+    private int iterations;
+}
@@ -0,0 +1,108 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Compares how closely the proportional-share schedulers divide picks
+ * according to tickets, and how much each pick costs. A set of threads with
+ * different numbers of tickets wait on a single queue; the benchmark
+ * repeatedly dequeues the next thread and puts it back, counting how often
+ * each thread is picked.
+ *
+ * <p>
+ * The share error of a thread after <i>n</i> picks is the difference between
+ * the number of times it was picked and the number of times it should have
+ * been picked given its fraction of the tickets. The benchmark reports the
+ * largest error over all threads, after a short run and after the full run.
+ */
+public class ShareBenchmark extends Benchmark {
+    /**
+     * Allocate a new proportional share benchmark.
+     */
+    public ShareBenchmark() {
+	super("share");
+
+	threads = getInteger("threads", 10);
+	picks = getInteger("picks", 100000);
+	shortPicks = getInteger("shortPicks", 100);
+    }
+
+    /**
+     * Run <tt>Benchmark.share.picks</tt> picks among
+     * <tt>Benchmark.share.threads</tt> threads, where thread <i>i</i> holds
+     * <i>i</i>+1 tickets, first under a <tt>LotteryScheduler</tt> and then
+     * under a <tt>StrideScheduler</tt>.
+     *
+     * @return	the total number of picks.
+     */
+    public int run() {
+	measureScheduler("lottery", new LotteryScheduler());
+	measureScheduler("stride", new StrideScheduler());
+
+	return picks * 2;
+    }
+
+    private void measureScheduler(String schedulerName, Scheduler scheduler) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread[] waiters = new KThread[threads];
+	int[] counts = new int[threads];
+	long totalTickets = 0;
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	for (int i=0; i<threads; i++) {
+	    waiters[i] = new KThread().setName(schedulerName + " " + i);
+	    scheduler.setPriority(waiters[i], i+1);
+	    totalTickets += i+1;
+
+	    queue.waitForAccess(waiters[i]);
+	}
+
+	double shortError = 0;
+	long startTime = System.nanoTime();
+
+	for (int n=1; n<=picks; n++) {
+	    KThread thread = queue.nextThread();
+	    counts[scheduler.getPriority(thread) - 1]++;
+	    queue.waitForAccess(thread);
+
+	    if (n == shortPicks)
+		shortError = shareError(counts, n, totalTickets);
+	}
+
+	long wallNanos = System.nanoTime() - startTime;
+	double error = shareError(counts, picks, totalTickets);
+
+	Machine.interrupt().restore(intStatus);
+
+	reportDetail(schedulerName + ": " + (wallNanos / picks) + " ns/pick, "
+		     + "max share error " + format(shortError) + " after "
+		     + shortPicks + " picks, " + format(error) + " after "
+		     + picks + " picks");
+    }
+
+    /**
+     * Return the largest difference, in picks, between how often a thread
+     * was picked and how often its tickets entitle it to be.
+     */
+    private double shareError(int[] counts, int n, long totalTickets) {
+	double error = 0;
+
+	for (int i=0; i<counts.length; i++) {
+	    double expected = (double) n * (i+1) / totalTickets;
+	    error = Math.max(error, Math.abs(counts[i] - expected));
+	}
+
+	return error;
+    }
+
+    private static String format(double error) {
+	return Math.round(error * 10) / 10.0 + "";
+    }
+
+    private int threads;
+    private int picks;
+    private int shortPicks;
+}
@@ -0,0 +1,41 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+/**
+ * Measures the round trip of a system call: the trap out of the processor,
+ * the kernel's dispatch to <tt>handleSyscall()</tt>, and the return to user
+ * mode. The user program is replaced by a loop of <tt>close(-1)</tt> calls,
+ * which the kernel rejects without doing any work of its own.
+ */
+public class SyscallBenchmark extends Benchmark {
+    /**
+     * Allocate a new system call benchmark.
+     */
+    public SyscallBenchmark() {
+	super("syscall");
+
+	program = Config.getString("Benchmark.syscall.program", "halt.coff");
+	iterations = getInteger("iterations", 100000);
+    }
+
+    /**
+     * Make <tt>Benchmark.syscall.iterations</tt> system calls from a single
+     * user process.
+     *
+     * @return	the number of system calls made, not counting the final
+     *		<tt>exit()</tt>.
+     */
+    public int run() {
+	BenchmarkProcess process = new BenchmarkProcess();
+	process.setSyscallLoop(iterations);
+	Lib.assertTrue(process.execute(program, new String[] { }),
+		       "could not run " + program);
+	process.join();
+
+	return iterations;
+    }
+
+    private String program;
+    private int iterations;
+}
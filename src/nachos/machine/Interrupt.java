@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,9 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingInterrupt[initialQueueSize];
+
+	fastForwardIdle = Config.getBoolean("Interrupt.fastForwardIdle", false);
     }
 
     /**
@@ -120,17 +120,45 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Called by the idle thread when no other thread is ready to run. If
+     * <tt>Interrupt.fastForwardIdle</tt> is set, advance simulated time to
+     * just before the next pending interrupt is due, so that the next tick
+     * invokes its handler. The result is the same as if the idle thread had
+     * spun, one kernel tick at a time, until the interrupt was due, but
+     * without counting out every tick in between.
+     */
+    public void idle() {
+	Lib.assertTrue(enabled());
+
+	if (!fastForwardIdle || numPending == 0)
+	    return;
+
+	Stats stats = privilege.stats;
+	long time = pending[0].time;
+	long skipped =
+	    (time - stats.totalTicks - 1) / Stats.KernelTick * Stats.KernelTick;
+
+	if (skipped <= 0)
+	    return;
+
+	Lib.debug(dbgInt, "Idling from time = " + stats.totalTicks +
+		  " to time = " + (stats.totalTicks + skipped));
+
+	stats.kernelTicks += skipped;
+	stats.totalTicks += skipped;
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	add(allocate(time, type, handler));
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +181,23 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long quietUserTicks() {
+	if (numPending == 0)
+	    return Long.MAX_VALUE;
+
+	long time = pending[0].time;
+	return (time - privilege.stats.totalTicks - 1) / Stats.UserTick;
+    }
+
+    private void advanceUserTicks(int count) {
+	Stats stats = privilege.stats;
+
+	Lib.assertTrue(count >= 0 && count <= quietUserTicks());
+
+	stats.userTicks += (long) count * Stats.UserTick;
+	stats.totalTicks += (long) count * Stats.UserTick;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,27 +206,32 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
+	if (numPending == 0)
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending[0].time > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && pending[0].time <= time) {
+	    PendingInterrupt next = removeFirst();
 
 	    Lib.assertTrue(next.time <= time);
 
+	    // return the entry to the pool before running the handler, which
+	    // will usually schedule the device's next interrupt
+	    String type = next.type;
+	    Runnable handler = next.handler;
+	    free(next);
+
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Lib.test(dbgInt))
+		System.out.println("  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,8 +242,11 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+
+	for (int i=0; i<sorted.length; i++) {
+	    PendingInterrupt toOccur = sorted[i];
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,25 +254,110 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
+    /**
+     * Take a pending interrupt from the pool, or allocate one if the pool is
+     * empty, and give it the next id.
+     */
+    private PendingInterrupt allocate(long time, String type,
+				      Runnable handler) {
+	PendingInterrupt toOccur = freeList;
+	if (toOccur != null)
+	    freeList = toOccur.nextFree;
+	else
+	    toOccur = new PendingInterrupt();
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.nextFree = null;
+
+	return toOccur;
+    }
+
+    /**
+     * Return a pending interrupt that has been removed from the queue to the
+     * pool.
+     */
+    private void free(PendingInterrupt toOccur) {
+	toOccur.type = null;
+	toOccur.handler = null;
+	toOccur.nextFree = freeList;
+	freeList = toOccur;
+    }
+
+    /**
+     * Add a pending interrupt to the heap, and update the queue statistics.
+     */
+    private void add(PendingInterrupt toOccur) {
+	if (numPending == pending.length)
+	    pending = Arrays.copyOf(pending, pending.length*2);
+
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!toOccur.before(pending[parent]))
+		break;
+
+	    pending[i] = pending[parent];
+	    i = parent;
+	}
+	pending[i] = toOccur;
+
+	Stats stats = privilege.stats;
+	stats.numPendingInterrupts = numPending;
+	if (numPending > stats.maxPendingInterrupts)
+	    stats.maxPendingInterrupts = numPending;
+    }
+
+    /**
+     * Remove and return the earliest pending interrupt. The heap must not be
+     * empty.
+     */
+    private PendingInterrupt removeFirst() {
+	PendingInterrupt first = pending[0];
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+
+	if (numPending > 0) {
+	    int i = 0;
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= numPending)
+		    break;
+		if (child+1 < numPending &&
+		    pending[child+1].before(pending[child]))
+		    child++;
+		if (!pending[child].before(last))
+		    break;
+
+		pending[i] = pending[child];
+		i = child;
+	    }
+	    pending[i] = last;
+	}
+
+	privilege.stats.numPendingInterrupts = numPending;
+
+	return first;
+    }
+
     private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+	/**
+	 * Test whether this interrupt is due before another. Interrupts due
+	 * at the same time occur in the order they were scheduled.
+	 */
+	boolean before(PendingInterrupt toOccur) {
+	    return time < toOccur.time ||
+		(time == toOccur.time && id < toOccur.id);
 	}
 
 	public int compareTo(Object o) {
 	    PendingInterrupt toOccur = (PendingInterrupt) o;
 
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
+	    if (before(toOccur))
 		return -1;
-	    else if (id > toOccur.id)
+	    else if (toOccur.before(this))
 		return 1;
 	    else
 		return 0;
@@ -230,6 +368,7 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	private PendingInterrupt nextFree;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +376,15 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private boolean fastForwardIdle;
+
+    /** A binary min-heap of the pending interrupts, ordered by time. */
+    private PendingInterrupt[] pending;
+    private int numPending = 0;
+    /** Pending interrupts that have occurred, kept for reuse. */
+    private PendingInterrupt freeList = null;
+
+    private static final int initialQueueSize = 16;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +396,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long quietUserTicks() {
+	    return Interrupt.this.quietUserTicks();
+	}
+
+	public void advanceUserTicks(int count) {
+	    Interrupt.this.advanceUserTicks(count);
+	}
     }
 }
@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -65,10 +67,13 @@ public final class Machine {
 
     /**
      * Yield to non-Nachos threads. Use in non-preemptive JVM's to give
-     * non-Nachos threads a chance to run.
+     * non-Nachos threads a chance to run. Does nothing if Nachos threads run
+     * on virtual threads, which already give up their carrier threads at
+     * every context switch.
      */
     public static void yield() {
-	Thread.yield();
+	if (!TCB.usesVirtualThreads())
+	    Thread.yield();
     }
 
     /**
@@ -92,14 +97,29 @@ public final class Machine {
     }
 
     /**
-     * Print stats, and terminate Nachos.
+     * Print stats, run the halt handlers, and terminate Nachos.
      */
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+
+	for (Iterator<Runnable> i=haltHandlers.iterator(); i.hasNext(); )
+	    i.next().run();
+
 	terminate();
     }
 
+    /**
+     * Add a handler to be run by <tt>halt()</tt>, after the machine's stats
+     * have been printed. Handlers are run in the order they were added. A
+     * kernel can use this to print statistics of its own.
+     *
+     * @param	handler	the handler to run when the machine halts.
+     */
+    public static void addHaltHandler(Runnable handler) {
+	haltHandlers.add(handler);
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -409,6 +429,8 @@ public final class Machine {
     private static String[] args = null;
 
     private static Stats stats = new Stats();
+    private static LinkedList<Runnable> haltHandlers =
+	new LinkedList<Runnable>();
 
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 
 /**
  * A file that supports reading, writing, and seeking.
@@ -136,6 +137,86 @@ public class OpenFile {
 	return -1;
     }
 
+    /**
+     * Read this file starting at the current file pointer into a sequence of
+     * buffers, filling each buffer's remaining space before moving on to the
+     * next, and return the number of bytes successfully read. Advances the
+     * file pointer and each buffer's position by the bytes read into it. If
+     * no bytes could be read because of a fatal error, returns -1.
+     *
+     * <p>
+     * By default, each buffer is read into with
+     * <tt>read(byte[], int, int)</tt>, stopping at the first one that is not
+     * filled, so the buffers must be backed by arrays. A file can override
+     * this to read all of the buffers in a single operation.
+     *
+     * @param	buffers	the buffers to store the bytes in.
+     * @param	offset	the index of the first buffer to use.
+     * @param	length	the number of buffers to use.
+     * @return	the actual number of bytes successfully read, or -1 on
+     *		failure.
+     */
+    public int read(ByteBuffer[] buffers, int offset, int length) {
+	int total = 0;
+
+	for (int i=offset; i<offset+length; i++) {
+	    ByteBuffer buffer = buffers[i];
+	    int amount = read(buffer.array(),
+			      buffer.arrayOffset() + buffer.position(),
+			      buffer.remaining());
+	    if (amount == -1)
+		return (total == 0) ? -1 : total;
+
+	    buffer.position(buffer.position() + amount);
+	    total += amount;
+
+	    if (buffer.hasRemaining())
+		break;
+	}
+
+	return total;
+    }
+
+    /**
+     * Write the remaining bytes of a sequence of buffers to this file,
+     * starting at the current file pointer, and return the number of bytes
+     * successfully written. Advances the file pointer and each buffer's
+     * position by the bytes written from it. If no bytes could be written
+     * because of a fatal error, returns -1.
+     *
+     * <p>
+     * By default, each buffer is written with
+     * <tt>write(byte[], int, int)</tt>, stopping at the first one that is not
+     * written completely, so the buffers must be backed by arrays. A file can
+     * override this to write all of the buffers in a single operation.
+     *
+     * @param	buffers	the buffers to get the bytes from.
+     * @param	offset	the index of the first buffer to use.
+     * @param	length	the number of buffers to use.
+     * @return	the actual number of bytes successfully written, or -1 on
+     *		failure.
+     */
+    public int write(ByteBuffer[] buffers, int offset, int length) {
+	int total = 0;
+
+	for (int i=offset; i<offset+length; i++) {
+	    ByteBuffer buffer = buffers[i];
+	    int amount = write(buffer.array(),
+			       buffer.arrayOffset() + buffer.position(),
+			       buffer.remaining());
+	    if (amount == -1)
+		return (total == 0) ? -1 : total;
+
+	    buffer.position(buffer.position() + amount);
+	    total += amount;
+
+	    if (buffer.hasRemaining())
+		break;
+	}
+
+	return total;
+    }
+
     private FileSystem fileSystem;
     private String name;
 }
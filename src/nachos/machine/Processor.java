@@ -46,14 +46,25 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	decodedPages = new DecodedInstruction[numPhysPages][];
+	blockPages = new BasicBlock[numPhysPages][];
+
+	blockExecution = Config.getBoolean("Processor.blockExecution", false);
+
+	tracing = (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) ||
+		   Lib.test(dbgFullDisassemble));
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    taggedTLB = Config.getBoolean("Processor.taggedTLB", false);
+	    tlbASIDs = new int[tlbSize];
 	}
 	else {
 	    translations = null;
+	    invalidateTranslations();
 	}
     }
 
@@ -83,6 +94,20 @@ public final class Processor {
     
     /**
      * Start executing instructions at the current PC. Never returns.
+     *
+     * <p>
+     * Whether instructions are traced is decided when the processor is
+     * constructed: if any of the <tt>p</tt>, <tt>m</tt>, or <tt>M</tt> debug
+     * flags is enabled, every instruction is traced; otherwise none are, and
+     * the interpreter does not test debug flags.
+     *
+     * <p>
+     * If the <tt>Processor.blockExecution</tt> configuration key is set, and
+     * no processor, disassembly, or interrupt debug flags are enabled, whole
+     * basic blocks are executed between interrupt checks. Simulated time
+     * still advances by <tt>Stats.UserTick</tt> per instruction, and no block
+     * runs past the time at which the next interrupt becomes due, so
+     * interrupts occur at exactly the same ticks as in single-step mode.
      */
     public void run() {
 	Lib.debug(dbgProcessor, "starting program in current thread");
@@ -91,7 +116,10 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
-	Instruction inst = new Instruction();
+	Instruction inst = tracing ? new TracingInstruction() : new Instruction();
+
+	if (blockExecution && !tracing && !Lib.test(dbgInt))
+	    runBlocks(inst);
 	
 	while (true) {
 	    try {
@@ -105,6 +133,155 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Execute instructions a basic block at a time. Never returns.
+     *
+     * @param	inst	the instruction state to execute with.
+     */
+    private void runBlocks(Instruction inst) {
+	while (true) {
+	    long quiet = privilege.interrupt.quietUserTicks();
+
+	    // the next instruction may cause an interrupt, so single-step it
+	    if (quiet < 1) {
+		try {
+		    inst.run();
+		}
+		catch (MipsException e) {
+		    e.handle();
+		}
+
+		privilege.interrupt.tick(false);
+		continue;
+	    }
+
+	    int executed = 0;
+
+	    try {
+		executed = runBlock(inst, (int) Math.min(quiet, maxBlockLength));
+	    }
+	    catch (BlockException e) {
+		// charge the instructions that completed before the fault
+		privilege.interrupt.advanceUserTicks(e.executed);
+		e.fault.handle();
+		privilege.interrupt.tick(false);
+		continue;
+	    }
+
+	    privilege.interrupt.advanceUserTicks(executed);
+	}
+    }
+
+    /**
+     * Execute up to <i>limit</i> instructions of the basic block starting at
+     * the current PC, stopping early if control leaves the block.
+     *
+     * @param	inst	the instruction state to execute with.
+     * @param	limit	the maximum number of instructions to execute.
+     * @return	the number of instructions executed.
+     * @exception	BlockException	if an instruction raised an exception.
+     */
+    private int runBlock(Instruction inst, int limit) throws BlockException {
+	int vaddr = registers[regPC];
+	int paddr;
+
+	try {
+	    paddr = translate(vaddr, 4, false);
+	}
+	catch (MipsException e) {
+	    throw new BlockException(e, 0);
+	}
+
+	int ppn = paddr / pageSize;
+	BasicBlock block = blockAt(paddr);
+	DecodedInstruction[] page = decodedPages[ppn];
+
+	int length = Math.min(block.instructions.length, limit);
+	int executed = 0;
+
+	while (executed < length) {
+	    DecodedInstruction decoded = block.instructions[executed];
+
+	    // the kernel may have copied a new page into this frame
+	    if (Lib.bytesToInt(mainMemory, paddr, 4) != decoded.value) {
+		blockPages[ppn] = null;
+		break;
+	    }
+
+	    try {
+		inst.run(decoded);
+	    }
+	    catch (MipsException e) {
+		throw new BlockException(e, executed);
+	    }
+
+	    executed++;
+	    vaddr += 4;
+	    paddr += 4;
+
+	    // stop if we branched, or a store modified this page
+	    if (registers[regPC] != vaddr || decodedPages[ppn] != page)
+		break;
+	}
+
+	return executed;
+    }
+
+    /**
+     * Return the basic block starting at the specified physical address,
+     * building it if it is not already cached. A basic block extends up to
+     * and including the delay slot of the first branch, up to the first
+     * instruction that always causes an exception, or up to the end of the
+     * page, whichever comes first.
+     *
+     * @param	paddr	the word-aligned physical address of the first
+     *			instruction in the block.
+     * @return	the basic block.
+     */
+    private BasicBlock blockAt(int paddr) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	BasicBlock[] page = blockPages[ppn];
+	if (page == null) {
+	    page = new BasicBlock[pageSize/4];
+	    blockPages[ppn] = page;
+	}
+
+	if (page[index] != null)
+	    return page[index];
+
+	int pageEnd = (ppn+1) * pageSize;
+	int length = 0;
+	DecodedInstruction[] instructions =
+	    new DecodedInstruction[maxBlockLength];
+
+	for (int addr=paddr; addr<pageEnd && length<maxBlockLength; addr+=4) {
+	    DecodedInstruction decoded =
+		decodeAt(addr, Lib.bytesToInt(mainMemory, addr, 4));
+	    instructions[length++] = decoded;
+
+	    if (decoded.operation == Mips.SYSCALL ||
+		decoded.operation == Mips.UNIMPL ||
+		decoded.operation == Mips.INVALID)
+		break;
+
+	    if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		// include the delay slot
+		if (addr+4 < pageEnd && length < maxBlockLength)
+		    instructions[length++] =
+			decodeAt(addr+4, Lib.bytesToInt(mainMemory, addr+4, 4));
+		break;
+	    }
+	}
+
+	DecodedInstruction[] trimmed = new DecodedInstruction[length];
+	System.arraycopy(instructions, 0, trimmed, 0, length);
+
+	page[index] = new BasicBlock(trimmed);
+	return page[index];
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -153,6 +330,48 @@ public final class Processor {
 	return usingTLB;
     }
 
+    /**
+     * Test whether this processor's TLB entries are tagged with an address
+     * space identifier (ASID). This is the case if the processor has a TLB
+     * and the <tt>Processor.taggedTLB</tt> configuration key is set.
+     *
+     * <p>
+     * A tagged TLB has an ASID register, set with <tt>setASID()</tt>. Every
+     * entry written with <tt>writeTLBEntry()</tt> is tagged with the current
+     * ASID, and only entries tagged with the current ASID are used to
+     * translate addresses. The kernel can then give each address space its
+     * own ASID, and leave the TLB alone when it switches between them.
+     *
+     * @return	<tt>true</tt> if this processor has a tagged TLB.
+     */
+    public boolean hasTaggedTLB() {
+	return taggedTLB;
+    }
+
+    /**
+     * Set the ASID register of a tagged TLB.
+     *
+     * @param	asid	the new ASID, at least 0 and less than
+     *			<tt>numASIDs</tt>.
+     */
+    public void setASID(int asid) {
+	Lib.assertTrue(taggedTLB);
+	Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+	this.asid = asid;
+    }
+
+    /**
+     * Return the contents of the ASID register of a tagged TLB.
+     *
+     * @return	the current ASID.
+     */
+    public int getASID() {
+	Lib.assertTrue(taggedTLB);
+
+	return asid;
+    }
+
     /**
      * Get the current page table, set by the last call to setPageTable().
      *
@@ -169,14 +388,64 @@ public final class Processor {
      * the specified page table. The size of the current address space will be
      * determined from the length of the page table array.
      *
+     * <p>
+     * Installing a different page table discards all cached instruction
+     * decodings. Reinstalling the current page table does not.
+     *
      * @param	pageTable	the page table to use.
      */
     public void setPageTable(TranslationEntry[] pageTable) {
 	Lib.assertTrue(!usingTLB);
 
+	if (pageTable != translations)
+	    flushDecodedPages();
+
+	invalidateTranslations();
+
 	this.translations = pageTable;
     }
 
+    /**
+     * Notify the processor that the kernel has modified the specified entry
+     * of the current page table.
+     *
+     * <p>
+     * When not using a TLB, the processor caches recently used translations,
+     * so that repeated accesses to a page do not have to re-check its page
+     * table entry. A kernel that changes any field of an entry in the current
+     * page table (including clearing its <tt>used</tt> or <tt>dirty</tt>
+     * bit), or replaces the entry, must call this method before returning to
+     * user mode. Installing a page table with <tt>setPageTable()</tt>
+     * discards all cached translations.
+     *
+     * @param	vpn	the virtual page number of the modified entry.
+     */
+    public void invalidateTranslation(int vpn) {
+	Lib.assertTrue(!usingTLB);
+
+	int slot = vpn & (translationCacheSize-1);
+
+	if (readCacheVPN[slot] == vpn)
+	    readCacheVPN[slot] = -1;
+	if (writeCacheVPN[slot] == vpn)
+	    writeCacheVPN[slot] = -1;
+    }
+
+    /**
+     * Notify the processor that the kernel may have modified any entry of the
+     * current page table. Discards all cached translations.
+     *
+     * @see	#invalidateTranslation
+     */
+    public void invalidateTranslations() {
+	Lib.assertTrue(!usingTLB);
+
+	for (int i=0; i<translationCacheSize; i++) {
+	    readCacheVPN[i] = -1;
+	    writeCacheVPN[i] = -1;
+	}
+    }
+
     /**
      * Return the number of entries in this processor's TLB.
      *
@@ -188,6 +457,21 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of memory references the TLB has translated since
+     * this processor was created. A reference that causes a TLB miss is not
+     * counted until the instruction is retried.
+     * Like a hardware performance counter, this lets the kernel measure how
+     * well its TLB replacement works.
+     *
+     * @return	the number of TLB hits.
+     */
+    public long getTLBHits() {
+	Lib.assertTrue(usingTLB);
+
+	return numTLBHits;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -202,7 +486,21 @@ public final class Processor {
     }
 
     /**
-     * Fill the specified TLB entry.
+     * Return the ASID the specified entry of a tagged TLB is tagged with.
+     *
+     * @param	number	the index into the TLB.
+     * @return	the ASID that was current when the entry was written.
+     */
+    public int getTLBEntryASID(int number) {
+	Lib.assertTrue(taggedTLB);
+	Lib.assertTrue(number >= 0 && number < tlbSize);
+
+	return tlbASIDs[number];
+    }
+
+    /**
+     * Fill the specified TLB entry. In a tagged TLB, the entry is tagged with
+     * the current ASID.
      *
      * <p>
      * The TLB is fully associative, so the location of an entry within the TLB
@@ -216,6 +514,25 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	if (taggedTLB)
+	    tlbASIDs[number] = asid;
+    }
+
+    /**
+     * Fill the specified entry of a tagged TLB, tagged with the specified
+     * ASID rather than the current one.
+     *
+     * @param	number	the index into the TLB.
+     * @param	entry	the new contents of the TLB entry.
+     * @param	asid	the ASID to tag the entry with.
+     */
+    public void writeTLBEntry(int number, TranslationEntry entry, int asid) {
+	Lib.assertTrue(taggedTLB);
+	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+	translations[number] = new TranslationEntry(entry);
+	tlbASIDs[number] = asid;
     }
 
     /**
@@ -279,6 +596,58 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Return the decoding of the instruction word stored at the specified
+     * physical address, decoding it only if it is not already cached. Each
+     * cached decoding remembers the word it was decoded from, so a stale entry
+     * (for example, after the kernel copies a new page into memory through
+     * <tt>getMemory()</tt>) is detected and replaced.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @param	value	the instruction word stored at <i>paddr</i>.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction decodeAt(int paddr, int value) {
+	int ppn = paddr / pageSize;
+
+	DecodedInstruction[] page = decodedPages[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize/4];
+	    decodedPages[ppn] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+
+	DecodedInstruction decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new DecodedInstruction(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Discard the cached instruction decodings for the specified physical
+     * page. Called whenever a user store modifies the page.
+     *
+     * @param	ppn	the physical page number.
+     */
+    private void invalidateDecodedPage(int ppn) {
+	decodedPages[ppn] = null;
+	blockPages[ppn] = null;
+    }
+
+    /**
+     * Discard all cached instruction decodings.
+     */
+    private void flushDecodedPages() {
+	for (int i=0; i<numPhysPages; i++) {
+	    decodedPages[i] = null;
+	    blockPages[i] = null;
+	}
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -294,10 +663,6 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-			       + (writing ? ", write" : ", read..."));
-
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
@@ -308,6 +673,17 @@ public final class Processor {
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
+	// if not using a TLB, check for a cached translation
+	if (!usingTLB) {
+	    int slot = vpn & (translationCacheSize-1);
+
+	    if (writing ? writeCacheVPN[slot] == vpn
+		: readCacheVPN[slot] == vpn) {
+		return (writing ? writeCacheBase[slot] : readCacheBase[slot])
+		    + offset;
+	    }
+	}
+
 	TranslationEntry entry = null;
 
 	// if not using a TLB, then the vpn is an index into the table
@@ -325,7 +701,8 @@ public final class Processor {
 	// else, look through all TLB entries for matching vpn
 	else {
 	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
+		if (translations[i].valid && translations[i].vpn == vpn &&
+		    (!taggedTLB || tlbASIDs[i] == asid)) {
 		    entry = translations[i];
 		    break;
 		}
@@ -335,6 +712,8 @@ public final class Processor {
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
 		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
+
+	    numTLBHits++;
 	}
 
 	// check if trying to write a read-only page
@@ -355,7 +734,33 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
-	int paddr = (ppn*pageSize) + offset;
+	// remember the translation; used is now set, and dirty too if writing
+	if (!usingTLB) {
+	    int slot = vpn & (translationCacheSize-1);
+
+	    readCacheVPN[slot] = vpn;
+	    readCacheBase[slot] = ppn*pageSize;
+
+	    if (writing) {
+		writeCacheVPN[slot] = vpn;
+		writeCacheBase[slot] = ppn*pageSize;
+	    }
+	}
+
+	return (ppn*pageSize) + offset;
+    }
+
+    /**
+     * Same as <tt>translate()</tt>, but also prints the translation if the
+     * processor debug flag is enabled. Used by the tracing interpreter.
+     */
+    private int traceTranslate(int vaddr, int size, boolean writing)
+	throws MipsException {
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
+			       + (writing ? ", write" : ", read..."));
+
+	int paddr = translate(vaddr, size, writing);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
@@ -372,14 +777,24 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
+	Lib.assertTrue(size==1 || size==2 || size==4);
+	
+	return Lib.bytesToInt(mainMemory, translate(vaddr, size, false), size);
+    }
+
+    /**
+     * Same as <tt>readMem()</tt>, but also prints the access if the processor
+     * debug flag is enabled. Used by the tracing interpreter.
+     */
+    private int traceReadMem(int vaddr, int size) throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = Lib.bytesToInt(mainMemory,
+				   traceTranslate(vaddr, size, false), size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -398,6 +813,17 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private void writeMem(int vaddr, int size, int value)
+	throws MipsException {
+	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	storeMem(translate(vaddr, size, true), size, value);
+    }
+
+    /**
+     * Same as <tt>writeMem()</tt>, but also prints the access if the
+     * processor debug flag is enabled. Used by the tracing interpreter.
+     */
+    private void traceWriteMem(int vaddr, int size, int value)
 	throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
@@ -405,9 +831,15 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+
+	storeMem(traceTranslate(vaddr, size, true), size, value);
+    }
+
+    private void storeMem(int paddr, int size, int value) {
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+	if (decodedPages[paddr / pageSize] != null)
+	    invalidateDecodedPage(paddr / pageSize);
     }
 
     /**
@@ -541,12 +973,38 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of references the TLB has translated. */
+    private long numTLBHits = 0;
+    /** <tt>true</tt> if the TLB entries are tagged with an ASID. */
+    private boolean taggedTLB = false;
+    /** The ASID each TLB entry is tagged with. */
+    private int[] tlbASIDs;
+    /** The ASID register. */
+    private int asid = 0;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
 
+    /** Number of cached translations for each of reads and writes. */
+    private static final int translationCacheSize = 64;
+    /**
+     * Direct-mapped caches of page table translations, indexed by the low bits
+     * of the vpn. An entry holds the vpn it caches (or -1 if empty) and the
+     * physical address of the start of the page. A read entry is filled by any
+     * successful translation, and a write entry only by a successful write,
+     * so that a hit never needs to set the <tt>used</tt> or <tt>dirty</tt>
+     * bits.
+     */
+    private int[] readCacheVPN = new int[translationCacheSize];
+    private int[] readCacheBase = new int[translationCacheSize];
+    private int[] writeCacheVPN = new int[translationCacheSize];
+    private int[] writeCacheBase = new int[translationCacheSize];
+
+    /** Number of distinct ASIDs a tagged TLB supports. */
+    public static final int numASIDs = 64;
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
@@ -555,6 +1013,28 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * Cached instruction decodings, indexed by physical page number and then
+     * by word offset within the page. A page's array is allocated the first
+     * time an instruction is fetched from it.
+     */
+    private DecodedInstruction[][] decodedPages;
+    /**
+     * Cached basic blocks, indexed by physical page number and then by the
+     * word offset of the first instruction in the block.
+     */
+    private BasicBlock[][] blockPages;
+    /**
+     * <tt>true</tt> if the processor, disassembly, or full disassembly debug
+     * flags were enabled when this processor was constructed. If so, user
+     * instructions are executed by <tt>TracingInstruction</tt>; otherwise, the
+     * interpreter does no debug flag checks at all on the common path.
+     */
+    private boolean tracing;
+    /** <tt>true</tt> if executing a basic block at a time. */
+    private boolean blockExecution;
+    /** The maximum number of instructions in a basic block. */
+    private static final int maxBlockLength = 64;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -562,6 +1042,7 @@ public final class Processor {
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgInt = 'i';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
@@ -607,6 +1088,22 @@ public final class Processor {
 	private int cause, badVAddr;
     }	
 
+    /**
+     * Thrown by <tt>runBlock()</tt> when an instruction in a basic block
+     * causes an exception, recording how many instructions completed first.
+     */
+    private static class BlockException extends Exception {
+	BlockException(MipsException fault, int executed) {
+	    this.fault = fault;
+	    this.executed = executed;
+	}
+
+	MipsException fault;
+	int executed;
+
+	private static final long serialVersionUID = 1L;
+    }
+
     private class Instruction {
 	public void run() throws MipsException {
 	    // hopefully this looks familiar to 152 students?
@@ -616,88 +1113,74 @@ public final class Processor {
 	    writeBack();
 	}	
 
-	private boolean test(int flag) {
+	/**
+	 * Execute an instruction that has already been fetched and decoded
+	 * from the current PC.
+	 *
+	 * @param	decoded	the decoded instruction.
+	 */
+	public void run(DecodedInstruction decoded) throws MipsException {
+	    this.decoded = decoded;
+	    value = decoded.value;
+
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
+	boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
 
-	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-				 + "\t");
+	int load(int vaddr, int size) throws MipsException {
+	    return readMem(vaddr, size);
+	}
 
-	    value = readMem(registers[regPC], 4);
+	void store(int vaddr, int size, int value) throws MipsException {
+	    writeMem(vaddr, size, value);
 	}
-	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	void fetch() throws MipsException {
+	    int paddr = translate(registers[regPC], 4, false);
+	    value = Lib.bytesToInt(mainMemory, paddr, 4);
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    decoded = decodeAt(paddr, value);
+	}
+	
+	void decode() {
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -717,12 +1200,9 @@ public final class Processor {
 		src1 &= 0xFFFFFFFFL;
 		src2 &= 0xFFFFFFFFL;
 	    }	    
-
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		print();	    
 	}
 
-	private void print() {
+	void print() {
 	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
 		!Lib.test(dbgFullDisassemble))
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
@@ -845,7 +1325,7 @@ public final class Processor {
 		System.out.print("\n");
 	}
 
-	private void execute() throws MipsException {
+	void execute() throws MipsException {
 	    int value;
 	    int preserved;
 	    
@@ -942,7 +1422,7 @@ public final class Processor {
 		throw new MipsException(exceptionSyscall);
 
 	    case Mips.LOAD:
-		value = readMem(addr, size);
+		value = load(addr, size);
 		
 		if (!test(Mips.UNSIGNED))
 		    dst = Lib.extend(value, 0, size*8);
@@ -952,7 +1432,7 @@ public final class Processor {
 		break;
 
 	    case Mips.LWL:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// LWL shifts the input left so the addressed byte is highest
 		preserved = (3-(addr&0x3))*8;	// number of bits to preserve
@@ -963,7 +1443,7 @@ public final class Processor {
 		break;
 
 	    case Mips.LWR:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// LWR shifts the input right so the addressed byte is lowest
 		preserved = (addr&0x3)*8;	// number of bits to preserve
@@ -974,11 +1454,11 @@ public final class Processor {
 		break;
 
 	    case Mips.STORE:
-		writeMem(addr, size, (int) src2);
+		store(addr, size, (int) src2);
 		break;
 
 	    case Mips.SWL:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// SWL shifts highest order byte into the addressed position
 		preserved = (3-(addr&0x3))*8;
@@ -988,11 +1468,11 @@ public final class Processor {
 		// merge values
 		dst = (dst & mask) | (value & ~mask);
 
-		writeMem(addr&~0x3, 4, (int) dst);
+		store(addr&~0x3, 4, (int) dst);
 		break;
 
 	    case Mips.SWR:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// SWR shifts the lowest order byte into the addressed position
 		preserved = (addr&0x3)*8;
@@ -1002,7 +1482,7 @@ public final class Processor {
 		// merge values
 		dst = (dst & mask) | (value & ~mask);
 
-		writeMem(addr&~0x3, 4, (int) dst);
+		store(addr&~0x3, 4, (int) dst);
 		break;
 
 	    case Mips.UNIMPL:
@@ -1016,7 +1496,7 @@ public final class Processor {
 	    }
 	}
 
-	private void writeBack() throws MipsException {
+	void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
 		throw new MipsException(exceptionOverflow);
@@ -1032,26 +1512,15 @@ public final class Processor {
 	    if (test(Mips.DST) && dstReg != 0)
 		registers[dstReg] = (int) dst;
 
-	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
-		    System.out.print("#0x" + Lib.toHexString((int) dst));
-		    if (test(Mips.DELAYEDLOAD))
-			System.out.print(" (delayed load)");
-		}
-	    }
-
 	    if (test(Mips.BRANCH) && branch) {
 		nextPC = jtarget;
 	    }
 
 	    advancePC(nextPC);
-
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("\n");
 	}
     
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1532,153 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * An instruction interpreter that prints the trace and disassembly output
+     * selected by the <tt>p</tt>, <tt>m</tt>, and <tt>M</tt> debug flags.
+     */
+    private class TracingInstruction extends Instruction {
+	int load(int vaddr, int size) throws MipsException {
+	    return traceReadMem(vaddr, size);
+	}
+
+	void store(int vaddr, int size, int value) throws MipsException {
+	    traceWriteMem(vaddr, size, value);
+	}
+
+	void fetch() throws MipsException {
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+				 + "\t");
+
+	    int vaddr = registers[regPC];
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+				   + ", size=4");
+
+	    int paddr = traceTranslate(vaddr, 4, false);
+	    value = Lib.bytesToInt(mainMemory, paddr, 4);
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+
+	    decoded = decodeAt(paddr, value);
+	}
+
+	void decode() {
+	    super.decode();
+
+	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+		print();	    
+	}
+
+	void writeBack() throws MipsException {
+	    super.writeBack();
+
+	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+		if (Lib.test(dbgFullDisassemble)) {
+		    System.out.print("#0x" + Lib.toHexString((int) dst));
+		    if (test(Mips.DELAYEDLOAD))
+			System.out.print(" (delayed load)");
+		}
+	    }
+
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("\n");
+	}
+    }
+
+    /**
+     * The parts of an instruction that depend only on the instruction word,
+     * and can therefore be computed once and reused every time the word is
+     * executed.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    int signedImm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (test(Mips.SIZEB))
+		size = 1;
+	    else if (test(Mips.SIZEH))
+		size = 2;
+	    else if (test(Mips.SIZEW))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (test(Mips.DSTRA))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch targets use the sign-extended immediate
+	    branchOffset = signedImm<<2;
+
+	    // get imm
+	    if (test(Mips.UNSIGNED))
+		imm = signedImm & 0xFFFF;
+	    else
+		imm = signedImm;
+	}
+
+	private boolean test(int flag) {
+	    return Lib.test(flag, flags);
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg, branchOffset;
+    }
+
+    /**
+     * A straight-line run of decoded instructions within one physical page.
+     */
+    private static class BasicBlock {
+	BasicBlock(DecodedInstruction[] instructions) {
+	    this.instructions = instructions;
+	}
+
+	final DecodedInstruction[] instructions;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -27,8 +27,12 @@ public final class Stats {
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	System.out.println("Swapping: pages in " + numSwapIns
+			   + ", pages out " + numSwapOuts);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	System.out.println("Interrupts: pending " + numPendingInterrupts
+			   + ", max pending " + maxPendingInterrupts);
     }
 
     /**
@@ -57,10 +61,18 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of pages the kernel has read back in from swap. */
+    public int numSwapIns = 0;
+    /** The total number of pages the kernel has written out to swap. */
+    public int numSwapOuts = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The number of interrupts currently waiting to occur. */
+    public int numPendingInterrupts = 0;
+    /** The largest number of interrupts that have been waiting at once. */
+    public int maxPendingInterrupts = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -8,6 +8,8 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -98,6 +100,7 @@ public class StubFileSystem implements FileSystem {
 		    return;
 
 		file = new RandomAccessFile(f, "rw");
+		channel = file.getChannel();
 
 		if (truncate)
 		    file.setLength(0);
@@ -137,6 +140,53 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
+	/**
+	 * Read into all of the buffers with a single scattering read, and a
+	 * single delay.
+	 */
+	public int read(ByteBuffer[] buffers, int offset, int length) {
+	    if (!open)
+		return -1;
+
+	    try {
+		delay();
+
+		long amount =
+		    channel.position(position)
+		    .read(buffers, offset, length);
+		amount = Math.max(0, amount);
+
+		position += amount;
+		return (int) amount;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
+	/**
+	 * Write all of the buffers with a single gathering write, and a
+	 * single delay.
+	 */
+	public int write(ByteBuffer[] buffers, int offset, int length) {
+	    if (!open)
+		return -1;
+
+	    try {
+		delay();
+
+		long amount =
+		    channel.position(position)
+		    .write(buffers, offset, length);
+
+		position += amount;
+		return (int) amount;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
 	public int length() {
 	    try {
 		return (int) file.length();
@@ -160,6 +210,8 @@ public class StubFileSystem implements FileSystem {
 	}
 
 	private RandomAccessFile file = null;
+	/** The channel of <tt>file</tt>, for scattering and gathering. */
+	private FileChannel channel = null;
 	private boolean open = false;
     }
 
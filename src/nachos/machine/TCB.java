@@ -5,7 +5,13 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.util.LinkedList;
 import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +20,31 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * Creating a JVM thread is expensive compared to everything else a TCB does,
+ * so when a TCB is destroyed, its JVM thread can be kept in a pool and reused
+ * to run the next TCB that is started. The pool holds at most
+ * <tt>TCB.poolSize</tt> idle JVM threads; the default, 0, disables it.
+ *
+ * <p>
+ * If <tt>TCB.virtualThreads</tt> is set, each TCB instead runs on a virtual
+ * thread. All of the virtual threads share a single carrier thread, since
+ * only one TCB runs at a time, and TCBs hand the processor to each other by
+ * parking and unparking, which just switches continuations on the carrier.
+ * Virtual threads are cheap enough that no pool is needed, and the limit on
+ * the number of TCBs is raised from <tt>maxThreads</tt> to
+ * <tt>maxVirtualThreads</tt>. This needs a JVM with virtual threads, run with
+ * <tt>--add-opens java.base/java.lang=ALL-UNNAMED</tt> so that the carrier
+ * can be chosen; otherwise TCBs run on platform threads as usual.
+ *
+ * <p>
+ * Platform threads normally hand the processor to each other through the
+ * monitor bound to each TCB. If <tt>TCB.parkHandoff</tt> is set, they park
+ * and unpark instead, as virtual threads do. A thread giving up the
+ * processor first spins, checking up to <tt>TCB.handoffSpins</tt> times
+ * whether it has already been switched back to, before it parks; this only
+ * helps if the host has a processor to spare.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +71,105 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	poolSize = Config.getInteger("TCB.poolSize", 0);
+	Lib.assertTrue(poolSize >= 0);
+
+	if (Config.getBoolean("TCB.virtualThreads", false)) {
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { findVirtualThreadBuilder(); }
+		});
+
+	    if (virtualThreadBuilder != null)
+		poolSize = 0;
+	    else
+		System.out.print(" (no virtual threads)");
+	}
+
+	/* Virtual threads always park, and must not spin, since the thread
+	 * they would be waiting for runs on the same carrier thread.
+	 */
+	if (virtualThreadBuilder != null) {
+	    parkHandoff = true;
+	}
+	else {
+	    parkHandoff = Config.getBoolean("TCB.parkHandoff", false);
+	    handoffSpins = Config.getInteger("TCB.handoffSpins", 100);
+	    Lib.assertTrue(handoffSpins >= 0);
+	}
+    }
+
+    /**
+     * Test whether TCBs run on virtual threads.
+     *
+     * @return	<tt>true</tt> if TCBs run on virtual threads.
+     */
+    public static boolean usesVirtualThreads() {
+	return virtualThreadBuilder != null;
+    }
+
+    /**
+     * Return a short description of how TCBs hand the processor to each
+     * other: <tt>"virtual"</tt>, <tt>"park"</tt> followed by the number of
+     * spins, or <tt>"monitor"</tt>.
+     *
+     * @return	the handoff mechanism in use.
+     */
+    public static String getHandoff() {
+	if (virtualThreadBuilder != null)
+	    return "virtual";
+	else if (parkHandoff)
+	    return "park, " + handoffSpins + " spins";
+	else
+	    return "monitor";
+    }
+
+    /**
+     * Create a builder for virtual threads that run on a single carrier
+     * thread of our own. The JVM's default scheduler would start carrier
+     * threads whenever a virtual thread blocks, on behalf of Nachos code
+     * without privilege. The builder's constructor and
+     * <tt>Thread.Builder.unstarted()</tt> only exist in newer JVMs, and the
+     * constructor is not public; leaves <tt>virtualThreadBuilder</tt>
+     * <tt>null</tt> if either cannot be used.
+     */
+    private static void findVirtualThreadBuilder() {
+	try {
+	    Class<?> builderClass =
+		Class.forName("java.lang.ThreadBuilders$VirtualThreadBuilder");
+	    Constructor<?> constructor =
+		builderClass.getDeclaredConstructor(Executor.class);
+	    constructor.setAccessible(true);
+
+	    unstartedMethod =
+		Class.forName("java.lang.Thread$Builder")
+		.getMethod("unstarted", Runnable.class);
+	    Carrier carrier = new Carrier();
+	    virtualThreadBuilder = constructor.newInstance(carrier);
+	    carrier.start();
+	}
+	catch (Exception e) {
+	    virtualThreadBuilder = null;
+	}
+    }
+
+    /**
+     * Create an unstarted Java thread to run the specified target: a virtual
+     * thread if TCBs run on virtual threads, or a platform thread otherwise.
+     * Must be called with privilege.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (virtualThreadBuilder == null)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) unstartedMethod.invoke(virtualThreadBuilder,
+						   target);
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("cannot create virtual thread: " + e);
+	    return null;
+	}
     }
     
     /**
@@ -66,7 +196,9 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() <
+		       (virtualThreadBuilder != null ? maxVirtualThreads
+			: maxThreads));
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,26 +218,37 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * If there is an idle one in the pool, we use it; otherwise we
+	     * have to make a new one. Creating Java threads is a privileged
+	     * operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
+	    final HostThread host = HostThread.take();
 
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
+	    if (host != null) {
+		javaThread = host.javaThread;
+	    }
+	    else {
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    javaThread = new HostThread(TCB.this).javaThread;
+			}
+		    });
+	    }
 
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	    /* The Java thread isn't yet running this TCB, but we need to get
+	     * it blocking in yield(). We do this by temporarily turning off
+	     * the current TCB, starting the new Java thread (or handing this
+	     * TCB to the pooled one), and waiting for it to wake us up from
+	     * threadroot(). Once the new TCB wakes us up, it's safe to context
+	     * switch to the new TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    if (host != null)
+		host.run(this);
+	    else
+		this.javaThread.start();
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -116,6 +259,15 @@ public final class TCB {
 
 	    /* All we have to do now is invoke threadroot() directly. */
 	    threadroot();
+
+	    /* If the other TCBs run on virtual threads, this is the only
+	     * thread that is not a daemon, so it must outlive this TCB to keep
+	     * the JVM running. The machine still exits through halt().
+	     */
+	    if (virtualThreadBuilder != null) {
+		while (true)
+		    LockSupport.park();
+	    }
 	}
     }
 
@@ -287,10 +439,26 @@ public final class TCB {
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	if (parkHandoff) {
+	    /* A virtual thread waiting on a monitor pins the carrier thread,
+	     * so virtual threads always park instead. running is volatile, and
+	     * interrupt() sets it before unparking us, so a wakeup cannot be
+	     * lost.
+	     */
+	    for (int i=0; i<handoffSpins && !running; i++)
+		;
+
+	    while (!running)
+		LockSupport.park(this);
+	    return;
+	}
+
+	synchronized (this) {
+	    while (!running) {
+		try { wait(); }
+		catch (InterruptedException e) { }
+	    }
 	}
     }
 
@@ -300,9 +468,17 @@ public final class TCB {
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	if (parkHandoff) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	    return;
+	}
+
+	synchronized (this) {
+	    running = true;
+	    notify();
+	}
     }
 
     private void associateThread(KThread thread) {
@@ -332,6 +508,12 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence when TCBs run on virtual threads.
+     */
+    public static final int maxVirtualThreads = 100000;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -388,7 +570,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +582,137 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+
+    /**
+     * The maximum number of idle Java threads to keep for reuse. Read from
+     * <tt>TCB.poolSize</tt> by <tt>givePrivilege()</tt>.
+     */
+    private static int poolSize = 0;
+
+    /**
+     * A builder for virtual threads on the carrier thread, if TCBs run on
+     * virtual threads, or <tt>null</tt> if they run on platform threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    private static Method unstartedMethod = null;
+
+    /**
+     * <tt>true</tt> if TCBs hand off by parking and unparking, rather than
+     * through their monitors.
+     */
+    private static boolean parkHandoff = false;
+    /**
+     * How many times a TCB checks its <tt>running</tt> flag before parking.
+     */
+    private static int handoffSpins = 0;
+
+    /**
+     * The scheduler of the virtual threads: a single thread that runs each
+     * continuation it is handed, in order. Started with privilege by
+     * <tt>findVirtualThreadBuilder()</tt>, once the builder that uses it
+     * exists. The carrier is a daemon, like the virtual threads, so that it
+     * never keeps the JVM running on its own.
+     */
+    private static class Carrier implements Executor, Runnable {
+	void start() {
+	    Thread thread = new Thread(this, "TCB carrier");
+	    thread.setDaemon(true);
+	    thread.start();
+	}
+
+	public void execute(Runnable continuation) {
+	    continuations.add(continuation);
+	}
+
+	public void run() {
+	    while (true) {
+		try {
+		    continuations.take().run();
+		}
+		catch (InterruptedException e) {
+		}
+	    }
+	}
+
+	private final LinkedBlockingQueue<Runnable> continuations =
+	    new LinkedBlockingQueue<Runnable>();
+    }
+
+    /**
+     * A Java thread that runs TCBs. It runs <tt>threadroot()</tt> for the
+     * TCB that created it. When that TCB is destroyed and
+     * <tt>threadroot()</tt> returns, the thread puts itself in the pool, if
+     * there is room, and waits there for <tt>start()</tt> to hand it
+     * another TCB. Otherwise it exits, as it would without a pool.
+     */
+    private static class HostThread implements Runnable {
+	HostThread(TCB tcb) {
+	    this.tcb = tcb;
+	    javaThread = newJavaThread(this);
+	}
+
+	public void run() {
+	    TCB next = tcb;
+
+	    while (next != null) {
+		next.threadroot();
+		next = nextTCB();
+	    }
+	}
+
+	/**
+	 * Hand this idle host thread a TCB to run.
+	 */
+	synchronized void run(TCB tcb) {
+	    Lib.assertTrue(this.tcb == null);
+
+	    this.tcb = tcb;
+	    notify();
+	}
+
+	/**
+	 * Return to the pool and wait for the next TCB, or return
+	 * <tt>null</tt> if the pool is full.
+	 */
+	private TCB nextTCB() {
+	    synchronized (this) {
+		tcb = null;
+	    }
+
+	    synchronized (pool) {
+		if (pool.size() >= poolSize)
+		    return null;
+
+		pool.add(this);
+	    }
+
+	    synchronized (this) {
+		while (tcb == null) {
+		    try { wait(); }
+		    catch (InterruptedException e) { }
+		}
+		return tcb;
+	    }
+	}
+
+	/**
+	 * Remove an idle host thread from the pool.
+	 *
+	 * @return	an idle host thread, or <tt>null</tt> if the pool is
+	 *		empty.
+	 */
+	static HostThread take() {
+	    synchronized (pool) {
+		return pool.isEmpty() ? null : pool.removeFirst();
+	    }
+	}
+
+	final Thread javaThread;
+	private TCB tcb;
+
+	private static final LinkedList<HostThread> pool =
+	    new LinkedList<HostThread>();
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
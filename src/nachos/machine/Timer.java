@@ -13,6 +13,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * If <tt>Timer.tickless</tt> is set, the timer does not interrupt
+ * periodically. Instead, the kernel programs each interrupt with
+ * <tt>setNextInterrupt()</tt>, and the timer stays quiet until then.
  */
 public final class Timer {
     /**
@@ -37,7 +42,10 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	tickless = Config.getBoolean("Timer.tickless", false);
+
+	if (!tickless)
+	    scheduleInterrupt();
     }
 
     /**
@@ -50,6 +58,36 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Test whether this timer is tickless.
+     *
+     * @return	<tt>true</tt> if this timer only interrupts when programmed
+     *		to by <tt>setNextInterrupt()</tt>.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * Program a tickless timer to interrupt at the specified time, unless it
+     * is already programmed to interrupt earlier. After it interrupts, the
+     * timer stays quiet until it is programmed again.
+     *
+     * @param	time	the time at which to interrupt. If this time has
+     *			already passed, the timer interrupts as soon as
+     *			possible.
+     */
+    public void setNextInterrupt(long time) {
+	Lib.assertTrue(tickless);
+
+	if (time >= nextInterrupt)
+	    return;
+
+	nextInterrupt = time;
+	privilege.interrupt.schedule(Math.max(time - getTime(), 1), "timer",
+				     timerInterrupt);
+    }
+
     /**
      * Get the current time.
      *
@@ -60,7 +98,16 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
+	if (tickless) {
+	    // ignore interrupts that were superseded by an earlier one
+	    if (nextInterrupt > getTime())
+		return;
+
+	    nextInterrupt = Long.MAX_VALUE;
+	}
+	else {
+	    scheduleInterrupt();
+	}
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -81,6 +128,8 @@ public final class Timer {
     }
 
     private long lastTimerInterrupt;
+    private boolean tickless;
+    private long nextInterrupt = Long.MAX_VALUE;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
 
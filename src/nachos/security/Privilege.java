@@ -158,6 +158,26 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user ticks that can elapse before a pending
+	 * interrupt might become due. Simulated time may be advanced by up to
+	 * this many user ticks with <tt>advanceUserTicks()</tt> without
+	 * changing when any interrupt handler runs.
+	 *
+	 * @return	the number of user ticks guaranteed not to trigger an
+	 *		interrupt, or <tt>Long.MAX_VALUE</tt> if none is pending.
+	 */
+	public long quietUserTicks();
+
+	/**
+	 * Advance the simulated time by the specified number of user ticks,
+	 * without checking for due interrupts. Must not advance past the limit
+	 * returned by <tt>quietUserTicks()</tt>.
+	 *
+	 * @param	count	the number of user instructions executed.
+	 */
+	public void advanceUserTicks(int count);
     }
 
     /**
@@ -1,6 +1,6 @@
 package nachos.threads;
 
-import java.util.LinkedList;
+import java.util.Arrays;
 
 import nachos.machine.*;
 
@@ -15,6 +15,11 @@ public class Alarm {
      *
      * <p><b>Note</b>: Nachos will not function correctly with more than one
      * alarm.
+     *
+     * <p>
+     * If the timer is tickless, the alarm programs it to interrupt at the
+     * earliest wake time of a sleeping thread, and, while more than one
+     * thread can run, at the end of the current time slice.
      */
     public Alarm() {
 	Machine.timer().setInterruptHandler(new Runnable() {
@@ -31,13 +36,16 @@ public class Alarm {
     public void timerInterrupt() {
 
 boolean preState = Machine.interrupt().disable();//ж
-WaitForAlarmThread x;
-for(java.util.Iterator i = waitForAlarmThreadList.iterator();i.hasNext();){
-	x = (WaitForAlarmThread)i.next();//ȡеÿ߳жǷﵽʱ
-	if(x.wakeTime<=Machine.timer().getTime()){//ﵽʱ䣬ƳѸ߳
-		i.remove();
-		x.thread.ready();
-	}
+long time = Machine.timer().getTime();
+while(numWaiting>0&&waitForAlarmThreadHeap[0].wakeTime<=time){//Ѷ߳ѵʱ䣬ӶƳ
+	WaitForAlarmThread x = removeWaiting(0);
+	x.thread.ready();
+}
+if(Machine.timer().isTickless()){//ʱӣֻһʱʱƬʱж
+	if(numWaiting>0)
+		Machine.timer().setNextInterrupt(waitForAlarmThreadHeap[0].wakeTime);
+	if(KThread.numRunnable()>1)
+		threadsCompeting();
 }
 Machine.interrupt().restore(preState);//ָж
 	KThread.currentThread().yield();
@@ -64,23 +72,139 @@ Machine.interrupt().restore(preState);//
 	//while (wakeTime > Machine.timer().getTime())
     //KThread.yield();
 boolean preState = Machine.interrupt().disable();//ж
-long wakeTime = Machine.timer().getTime()+x;//㻽ѵʱ
-WaitForAlarmThread waitForAlarmThread = new WaitForAlarmThread(wakeTime, KThread.currentThread());
-waitForAlarmThreadList.add(waitForAlarmThread);//̼߳뵽ȴ
+KThread thread = KThread.currentThread();
+WaitForAlarmThread waitForAlarmThread = thread.alarmState;
+if(waitForAlarmThread==null){//ÿֻ߳һΣԺظʹ
+	waitForAlarmThread = new WaitForAlarmThread(thread);
+	thread.alarmState = waitForAlarmThread;
+}
+waitForAlarmThread.wakeTime = Machine.timer().getTime()+x;//㻽ѵʱ
+waitForAlarmThread.order = numWaits++;
+addWaiting(waitForAlarmThread);//̼߳뵽ȴ
+if(Machine.timer().isTickless())
+	Machine.timer().setNextInterrupt(waitForAlarmThread.wakeTime);
 KThread.sleep();//ø߳˯
 Machine.interrupt().restore(preState);//ָж   
     }
-    
-class WaitForAlarmThread{
+
+    /**
+     * Wake up a thread that is sleeping in <tt>waitUntil()</tt> before its
+     * wake time, for example because the event it was waiting for with a
+     * timeout has happened. Does nothing if the thread is not sleeping.
+     *
+     * @param	thread	the thread to wake up.
+     * @return	<tt>true</tt> if the thread was sleeping in
+     *		<tt>waitUntil()</tt>.
+     */
+    public boolean cancel(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	WaitForAlarmThread waitForAlarmThread = thread.alarmState;
+	boolean waiting = (waitForAlarmThread != null &&
+			   waitForAlarmThread.index >= 0);
+
+	if (waiting) {
+	    removeWaiting(waitForAlarmThread.index);
+	    thread.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return waiting;
+    }
+
+    /**
+     * Called with interrupts disabled when more than one thread can run. If
+     * the timer is tickless, make sure it interrupts by the end of the
+     * current time slice, so that the running thread is preempted.
+     */
+    void threadsCompeting() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (Machine.timer().isTickless())
+	    Machine.timer().setNextInterrupt(Machine.timer().getTime() +
+					     Stats.TimerTicks);
+    }
+
+    /**
+     * Add a sleeping thread to the heap, ordered by wake time.
+     */
+    private static void addWaiting(WaitForAlarmThread x) {
+	if (numWaiting == waitForAlarmThreadHeap.length)
+	    waitForAlarmThreadHeap = Arrays.copyOf(waitForAlarmThreadHeap,
+						   numWaiting*2);
+
+	siftUp(numWaiting++, x);
+    }
+
+    /**
+     * Remove the sleeping thread at position <i>i</i> of the heap.
+     */
+    private static WaitForAlarmThread removeWaiting(int i) {
+	WaitForAlarmThread x = waitForAlarmThreadHeap[i];
+	WaitForAlarmThread last = waitForAlarmThreadHeap[--numWaiting];
+	waitForAlarmThreadHeap[numWaiting] = null;
+
+	if (last != x) {
+	    siftDown(i, last);
+	    if (waitForAlarmThreadHeap[i] == last)
+		siftUp(i, last);
+	}
+
+	x.index = -1;
+	return x;
+    }
+
+    private static void siftUp(int i, WaitForAlarmThread x) {
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!x.before(waitForAlarmThreadHeap[parent]))
+		break;
+
+	    place(i, waitForAlarmThreadHeap[parent]);
+	    i = parent;
+	}
+	place(i, x);
+    }
+
+    private static void siftDown(int i, WaitForAlarmThread x) {
+	while (true) {
+	    int child = 2*i + 1;
+	    if (child >= numWaiting)
+		break;
+	    if (child+1 < numWaiting &&
+		waitForAlarmThreadHeap[child+1].before(waitForAlarmThreadHeap[child]))
+		child++;
+	    if (!waitForAlarmThreadHeap[child].before(x))
+		break;
+
+	    place(i, waitForAlarmThreadHeap[child]);
+	    i = child;
+	}
+	place(i, x);
+    }
+
+    private static void place(int i, WaitForAlarmThread x) {
+	waitForAlarmThreadHeap[i] = x;
+	x.index = i;
+    }
+
+static class WaitForAlarmThread{
 	long wakeTime;
+	long order;//˳򣬻ʱͬʱ˯ߵȻ
+	int index = -1;//ڶеλãڶʱΪ-1
 	KThread thread;
-	public WaitForAlarmThread(long wakeTime,KThread thread){
-		this.wakeTime=wakeTime;
+	public WaitForAlarmThread(KThread thread){
 		this.thread=thread;
 	}
+	boolean before(WaitForAlarmThread x){
+		return wakeTime<x.wakeTime||(wakeTime==x.wakeTime&&order<x.order);
+	}
 }
 
-private static LinkedList<WaitForAlarmThread> waitForAlarmThreadList = new LinkedList<WaitForAlarmThread>(); 
+private static WaitForAlarmThread[] waitForAlarmThreadHeap = new WaitForAlarmThread[16];//ʱеС
+private static int numWaiting = 0;
+private static long numWaits = 0;
 public static void AlarmTest(){
 	KThread a = new KThread(new Runnable() {
 		
@@ -0,0 +1,397 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A completely fair scheduler. Each thread has a <i>virtual runtime</i>, the
+ * number of ticks it has spent running, and the next thread to receive access
+ * is always the waiting thread with the smallest virtual runtime, so that
+ * over time every thread gets an equal share of the processor.
+ *
+ * <p>
+ * A thread's runtime is measured by <tt>KThread</tt> itself, from the timer's
+ * tick count when the thread is switched in and out, and is charged to the
+ * thread's virtual runtime each time it waits for access.
+ *
+ * <p>
+ * A thread that has been blocked for a long time has fallen far behind the
+ * threads that kept running. So that it cannot then monopolize the processor,
+ * a thread's virtual runtime is never allowed to be more than one time slice
+ * behind the virtual runtime of the last thread the queue gave access to.
+ *
+ * <p>
+ * Waiting threads are kept in a red-black tree ordered by virtual runtime,
+ * with threads of equal virtual runtime in arrival order. The tree caches its
+ * leftmost node, so finding the next thread takes constant time, and adding
+ * or removing a thread takes logarithmic time.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored. Threads in a fair scheduler
+     *					do not donate their runtime.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its waiting threads in a red-black
+     * tree ordered by virtual runtime.
+     */
+    protected class FairQueue extends ThreadQueue {
+	FairQueue() {
+	    nil = new ThreadState(null);
+	    root = nil;
+	    leftmost = nil;
+	}
+
+	/**
+	 * Charge a thread for the ticks it has run since it last waited, and
+	 * add it to the tree.
+	 *
+	 * @param	thread	the thread to add to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.parent == null);
+
+	    state.charge();
+	    state.vruntime = Math.max(state.vruntime,
+				      minVruntime - Stats.TimerTicks);
+	    state.order = numAdded++;
+
+	    insert(state);
+	}
+
+	/**
+	 * Remove the thread with the smallest virtual runtime.
+	 *
+	 * @return	the next thread, or <tt>null</tt> if the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (leftmost == nil)
+		return null;
+
+	    ThreadState state = removeLeftmost();
+	    minVruntime = Math.max(minVruntime, state.vruntime);
+
+	    return state.thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(root == nil);
+	}
+
+	/**
+	 * Print out the waiting threads in order, with their virtual
+	 * runtimes.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    print(root);
+	    System.out.println();
+	}
+
+	private void print(ThreadState node) {
+	    if (node == nil)
+		return;
+
+	    print(node.left);
+	    System.out.print(" " + node.thread + "(" + node.vruntime + ")");
+	    print(node.right);
+	}
+
+	/**
+	 * Insert a node into the tree, and rebalance it.
+	 */
+	private void insert(ThreadState z) {
+	    ThreadState y = nil;
+	    ThreadState x = root;
+	    boolean isLeftmost = true;
+
+	    while (x != nil) {
+		y = x;
+		if (z.before(x)) {
+		    x = x.left;
+		}
+		else {
+		    x = x.right;
+		    isLeftmost = false;
+		}
+	    }
+
+	    z.parent = y;
+	    if (y == nil)
+		root = z;
+	    else if (z.before(y))
+		y.left = z;
+	    else
+		y.right = z;
+
+	    z.left = nil;
+	    z.right = nil;
+	    z.red = true;
+
+	    if (isLeftmost)
+		leftmost = z;
+
+	    while (z.parent.red) {
+		if (z.parent == z.parent.parent.left) {
+		    y = z.parent.parent.right;
+		    if (y.red) {
+			z.parent.red = false;
+			y.red = false;
+			z.parent.parent.red = true;
+			z = z.parent.parent;
+		    }
+		    else {
+			if (z == z.parent.right) {
+			    z = z.parent;
+			    rotateLeft(z);
+			}
+			z.parent.red = false;
+			z.parent.parent.red = true;
+			rotateRight(z.parent.parent);
+		    }
+		}
+		else {
+		    y = z.parent.parent.left;
+		    if (y.red) {
+			z.parent.red = false;
+			y.red = false;
+			z.parent.parent.red = true;
+			z = z.parent.parent;
+		    }
+		    else {
+			if (z == z.parent.left) {
+			    z = z.parent;
+			    rotateRight(z);
+			}
+			z.parent.red = false;
+			z.parent.parent.red = true;
+			rotateLeft(z.parent.parent);
+		    }
+		}
+	    }
+
+	    root.red = false;
+	}
+
+	/**
+	 * Remove the leftmost node from the tree, rebalance it, and find the
+	 * new leftmost node. The leftmost node has no left child, so it is
+	 * simply replaced by its right subtree.
+	 */
+	private ThreadState removeLeftmost() {
+	    ThreadState z = leftmost;
+	    ThreadState x = z.right;
+
+	    if (x != nil) {
+		leftmost = x;
+		while (leftmost.left != nil)
+		    leftmost = leftmost.left;
+	    }
+	    else {
+		leftmost = z.parent;
+	    }
+
+	    transplant(z, x);
+	    if (!z.red)
+		removeFixup(x);
+
+	    z.parent = null;
+	    z.left = null;
+	    z.right = null;
+
+	    return z;
+	}
+
+	private void removeFixup(ThreadState x) {
+	    while (x != root && !x.red) {
+		if (x == x.parent.left) {
+		    ThreadState w = x.parent.right;
+		    if (w.red) {
+			w.red = false;
+			x.parent.red = true;
+			rotateLeft(x.parent);
+			w = x.parent.right;
+		    }
+		    if (!w.left.red && !w.right.red) {
+			w.red = true;
+			x = x.parent;
+		    }
+		    else {
+			if (!w.right.red) {
+			    w.left.red = false;
+			    w.red = true;
+			    rotateRight(w);
+			    w = x.parent.right;
+			}
+			w.red = x.parent.red;
+			x.parent.red = false;
+			w.right.red = false;
+			rotateLeft(x.parent);
+			x = root;
+		    }
+		}
+		else {
+		    ThreadState w = x.parent.left;
+		    if (w.red) {
+			w.red = false;
+			x.parent.red = true;
+			rotateRight(x.parent);
+			w = x.parent.left;
+		    }
+		    if (!w.right.red && !w.left.red) {
+			w.red = true;
+			x = x.parent;
+		    }
+		    else {
+			if (!w.left.red) {
+			    w.right.red = false;
+			    w.red = true;
+			    rotateLeft(w);
+			    w = x.parent.left;
+			}
+			w.red = x.parent.red;
+			x.parent.red = false;
+			w.left.red = false;
+			rotateRight(x.parent);
+			x = root;
+		    }
+		}
+	    }
+
+	    x.red = false;
+	}
+
+	/**
+	 * Replace the subtree rooted at <i>u</i> with the one rooted at
+	 * <i>v</i>. Sets <i>v</i>'s parent even if <i>v</i> is the sentinel,
+	 * which <tt>removeFixup()</tt> relies on.
+	 */
+	private void transplant(ThreadState u, ThreadState v) {
+	    if (u.parent == nil)
+		root = v;
+	    else if (u == u.parent.left)
+		u.parent.left = v;
+	    else
+		u.parent.right = v;
+
+	    v.parent = u.parent;
+	}
+
+	private void rotateLeft(ThreadState x) {
+	    ThreadState y = x.right;
+
+	    x.right = y.left;
+	    if (y.left != nil)
+		y.left.parent = x;
+
+	    transplant(x, y);
+
+	    y.left = x;
+	    x.parent = y;
+	}
+
+	private void rotateRight(ThreadState x) {
+	    ThreadState y = x.left;
+
+	    x.left = y.right;
+	    if (y.right != nil)
+		y.right.parent = x;
+
+	    transplant(x, y);
+
+	    y.right = x;
+	    x.parent = y;
+	}
+
+	/** The sentinel that stands for every leaf, and the root's parent. */
+	private ThreadState nil;
+	private ThreadState root;
+	/** The waiting thread with the smallest virtual runtime. */
+	private ThreadState leftmost;
+	private long numAdded = 0;
+	/**
+	 * The virtual runtime of the last thread given access, or the largest
+	 * before it if that was smaller. Never decreases.
+	 */
+	private long minVruntime = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its virtual runtime, and its node in
+     * the tree of the queue it is waiting on.
+     */
+    protected class ThreadState {
+	ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Add the ticks this thread has run since it was last charged to its
+	 * virtual runtime.
+	 */
+	void charge() {
+	    long ticksRun = thread.getTicksRun();
+
+	    vruntime += ticksRun - ticksCharged;
+	    ticksCharged = ticksRun;
+	}
+
+	/**
+	 * Test whether this thread comes before another in a fair queue.
+	 */
+	boolean before(ThreadState state) {
+	    return vruntime < state.vruntime ||
+		(vruntime == state.vruntime && order < state.order);
+	}
+
+	/** The thread with which this object is associated. */
+	final KThread thread;
+	/** This thread's virtual runtime. */
+	long vruntime = 0;
+	/** The ticks this thread had run when it was last charged. */
+	long ticksCharged = 0;
+	/** When this thread joined its queue. */
+	long order;
+
+	ThreadState parent, left, right;
+	boolean red;
+    }
+}
@@ -55,6 +55,7 @@ waitForJoinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
 	    currentThread = this;
 	    tcb = TCB.currentTCB();
 	    name = "main";
+	    stats.register();
 	    restoreState();
 
 	    createIdleThread();
@@ -146,6 +147,9 @@ waitForJoinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (this != idleThread)
+	    stats.register();
+
 	tcb.start(new Runnable() {
 		public void run() {
 		    runThread();
@@ -267,7 +271,12 @@ if(x!=null){
 	
 	status = statusReady;
 	if (this != idleThread){
+	    stats.readied(Machine.timer().getTime());
 	    readyQueue.waitForAccess(this);
+	    numReady++;
+
+	    if (numRunnable() > 1 && ThreadedKernel.alarm != null)
+		ThreadedKernel.alarm.threadsCompeting();
 	}
 	Machine.autoGrader().readyThread(this);
     }
@@ -288,6 +297,10 @@ if(++JoinCount!=1){//
 }
 	
 boolean preState = Machine.interrupt().disable();//ж
+if(status==statusFinished){//this߳Ѿֱӷ
+	Machine.interrupt().restore(preState);
+	return;
+}
 //this̳߳ΪwaitForJoinQueueеͷִֻthiṣ߳Żȥִж߳
 waitForJoinQueue.acquire(this);
 waitForJoinQueue.waitForAccess(currentThread);//ǰ̼߳뵽waitForJoinQueue
@@ -304,12 +317,21 @@ Machine.interrupt().restore(preState);//
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * Before each yield, the idle thread lets the interrupt controller skip
+     * ahead to the next pending interrupt, if it is configured to.
      */
     private static void createIdleThread() {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    Machine.interrupt().idle();
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -324,8 +346,13 @@ Machine.interrupt().restore(preState);//
      */
     private static void runNextThread() {
 	KThread nextThread = readyQueue.nextThread();
-	if (nextThread == null)
+	if (nextThread == null) {
 	    nextThread = idleThread;
+	}
+	else {
+	    numReady--;
+	    nextThread.stats.dequeued(Machine.timer().getTime());
+	}
 
 	nextThread.run();
     }
@@ -367,6 +394,17 @@ Machine.interrupt().restore(preState);//
 	currentThread.restoreState();
     }
 
+    /**
+     * Return the number of threads, not counting the idle thread, that are
+     * either running or on the ready queue.
+     */
+    static int numRunnable() {
+	boolean running = (currentThread != idleThread &&
+			   currentThread.status == statusRunning);
+
+	return numReady + (running ? 1 : 0);
+    }
+
     /**
      * Prepare this thread to be run. Set <tt>status</tt> to
      * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
@@ -381,6 +419,9 @@ Machine.interrupt().restore(preState);//
 	Machine.autoGrader().runningThread(this);
 	
 	status = statusRunning;
+	runStart = Machine.timer().getTime();
+	if (this != idleThread)
+	    stats.switchedIn();
 
 	if (toBeDestroyed != null) {
 	    toBeDestroyed.tcb.destroy();
@@ -390,12 +431,39 @@ Machine.interrupt().restore(preState);//
     }
 
     /**
-     * Prepare this thread to give up the processor. Kernel threads do not
-     * need to do anything here.
+     * Prepare this thread to give up the processor. Kernel threads only
+     * account for the ticks they ran.
      */
     protected void saveState() {
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(this == currentThread);
+
+	long slice = Machine.timer().getTime() - runStart;
+	ticksRun += slice;
+	if (this != idleThread)
+	    stats.switchedOut(slice);
+    }
+
+    /**
+     * Return the scheduling statistics of this thread.
+     *
+     * @return	this thread's scheduling statistics.
+     */
+    public ThreadStats getStats() {
+	return stats;
+    }
+
+    /**
+     * Return the number of ticks this thread has spent running, including
+     * its current time slice if it is the current thread.
+     *
+     * @return	the number of ticks this thread has run.
+     */
+    long getTicksRun() {
+	if (this == currentThread)
+	    return ticksRun + Machine.timer().getTime() - runStart;
+	else
+	    return ticksRun;
     }
 
     private static class PingTest implements Runnable {
@@ -451,6 +519,12 @@ public static void joinSelfTest(){
      */
     public Object schedulingState = null;
 
+    /**
+     * The alarm's record of this thread, kept between calls to
+     * <tt>Alarm.waitUntil()</tt> so that sleeping does not allocate.
+     */
+    Alarm.WaitForAlarmThread alarmState = null;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -463,6 +537,12 @@ public static void joinSelfTest(){
      * on the ready queue and not running).
      */
     private int status = statusNew;
+    /**
+     * The number of ticks this thread ran before its current time slice, and
+     * the time at which its current time slice began.
+     */
+    private long ticksRun = 0, runStart = 0;
+    private ThreadStats stats = new ThreadStats(this);
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
@@ -484,6 +564,8 @@ public int getJoinCount() {
 
 //long waitForAccessTime;    
     private static ThreadQueue readyQueue = null;
+    /** The number of threads on the ready queue. */
+    private static int numReady = 0;
     public static ThreadQueue getReadyQueue() {
 		return readyQueue;
 	}
@@ -1,8 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.Random;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -79,77 +78,154 @@ public boolean increasePriority() {
 private static final int priorityMinimum = 0;
 private static final int priorityMaximum = Integer.MAX_VALUE;
 
+/**
+ * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+ * Each waiting thread occupies a slot in a Fenwick tree of ticket counts,
+ * so that adding a thread, removing it, changing its tickets and drawing
+ * the winning ticket all take O(log n) time.
+ */
 class LotteryQueue extends PriorityQueue{
 
 	LotteryQueue(boolean transferPriority) {
 		super(transferPriority);
-		// TODO Auto-generated constructor stub
 	}
-	
+
+	protected void add(ThreadState state) {
+		LottoryThreadState lottoryState = (LottoryThreadState) state;
+
+		if (freeSlots == 0) {
+			if (numSlots == slots.length)
+				grow();
+			freeSlot[freeSlots++] = numSlots++;
+		}
+
+		int slot = freeSlot[--freeSlots];
+		slots[slot] = lottoryState;
+		lottoryState.slot = slot;
+		lottoryState.tickets = lottoryState.getEffectivePriority();
+		addTickets(slot, lottoryState.tickets);
+		numWaiting++;
+	}
+
+	protected void remove(ThreadState state) {
+		LottoryThreadState lottoryState = (LottoryThreadState) state;
+		int slot = lottoryState.slot;
+
+		addTickets(slot, -lottoryState.tickets);
+		slots[slot] = null;
+		freeSlot[freeSlots++] = slot;
+		lottoryState.slot = -1;
+		numWaiting--;
+	}
+
+	protected void reposition(ThreadState state) {
+		LottoryThreadState lottoryState = (LottoryThreadState) state;
+		int tickets = lottoryState.getEffectivePriority();
+
+		addTickets(lottoryState.slot, tickets - lottoryState.tickets);
+		lottoryState.tickets = tickets;
+	}
+
+	/**
+	 * Draw a winning ticket, and return the thread that holds it. If no
+	 * waiting thread has any tickets, return the one in the lowest slot.
+	 */
 	protected LottoryThreadState pickNextThread() {
-		java.util.Iterator i = waitList.iterator();
-		int sumTickets = 0;
-		KThread x;
-		KThread nextThread = null;
-		while(i.hasNext()){
-			x = (KThread)i.next();
-			sumTickets +=getThreadState(x).getEffectivePriority();
-//if(this==KThread.getReadyQueue())
-//	System.out.print(x.getName()+"Чȼ:"+getThreadState(x).getEffectivePriority()+",");
+		if (numWaiting == 0)
+			return null;
+
+		long total = totalTickets();
+		if (total == 0) {
+			for (int slot=0; ; slot++) {
+				if (slots[slot] != null)
+					return slots[slot];
+			}
 		}
-		int winningTickets=0;
-		if(sumTickets>0)
-			winningTickets = new Random().nextInt(sumTickets);
-//if(this==KThread.getReadyQueue()){
-//System.out.print("ƱΪ"+sumTickets+",");
-//System.out.println("нƱΪ"+winningTickets);}
-		i = waitList.iterator();
-		int countTickets = 0;
-		
-		while(i.hasNext()){
-			
-			nextThread = (KThread)i.next();
-//System.out.println(nextThread.getName());
-			countTickets += getThreadState(nextThread).getEffectivePriority();
-//System.out.println("countTickets:"+countTickets);
-			if(countTickets>=winningTickets)
-				break;
+
+		long winningTicket;
+		if (total <= Integer.MAX_VALUE)
+			winningTicket = Lib.random((int) total);
+		else
+			winningTicket = Math.min((long) (Lib.random() * total), total-1);
+
+		// find the slot whose tickets cover the winning ticket
+		int slot = 0;
+		for (int step=slots.length; step>0; step>>=1) {
+			if (slot+step <= slots.length && tree[slot+step] <= winningTicket) {
+				slot += step;
+				winningTicket -= tree[slot];
+			}
 		}
-		
-		if(nextThread == null) return null;
-		else return getThreadState(nextThread);
-			}	
-	
-	
+
+		Lib.assertTrue(slots[slot] != null);
+		return slots[slot];
+	}
+
+	/**
+	 * Return the total number of tickets held by the waiting threads. The
+	 * number of slots is a power of two, so the last node of the tree
+	 * covers all of them.
+	 */
+	long totalTickets() {
+		return tree[slots.length];
+	}
+
+	private void addTickets(int slot, long tickets) {
+		for (int i=slot+1; i<tree.length; i+=(i & -i))
+			tree[i] += tickets;
+	}
+
+	/**
+	 * Double the number of slots and rebuild the tree.
+	 */
+	private void grow() {
+		int capacity = slots.length * 2;
+
+		slots = Arrays.copyOf(slots, capacity);
+		freeSlot = Arrays.copyOf(freeSlot, capacity);
+		tree = new long[capacity+1];
+
+		for (int slot=0; slot<numSlots; slot++) {
+			if (slots[slot] != null)
+				addTickets(slot, slots[slot].tickets);
+		}
+	}
+
+	private LottoryThreadState[] slots = new LottoryThreadState[initialSlots];
+	private int[] freeSlot = new int[initialSlots];
+	private int freeSlots = 0;
+	/** The number of slots that have ever been used. */
+	private int numSlots = 0;
+	private int numWaiting = 0;
+	/** The Fenwick tree of ticket counts, indexed from 1. */
+	private long[] tree = new long[initialSlots+1];
+
+	private static final int initialSlots = 16;
 }
 
 class LottoryThreadState extends ThreadState{
 
 	public LottoryThreadState(KThread thread) {
 		super(thread);
-		// TODO Auto-generated constructor stub
 	}
-	
-	public int getEffectivePriority() {
-		Lib.assertTrue(Machine.interrupt().disabled());
-		if(effectivePriority == invalidPriority&&!acquired.isEmpty()){
-			effectivePriority = priority;//ȽԼȼЧȼ
-			for(Iterator i = acquired.iterator();i.hasNext();){//Ƚacquiredееȴе̵߳ȼ
-				for(Iterator j = ((PriorityQueue)i.next()).waitList.iterator();j.hasNext();){
-					ThreadState ts = getThreadState((KThread)j.next());
-						effectivePriority += ts.priority;
-				}
-			}
-			return effectivePriority;
-		}else{ 
-			if(effectivePriority==-2){//==-2֤ȼ̶߳вȼ
-				return priority;
-			}
-		
-		 return effectivePriority;//߳ûִУô֮ǰЧȼһ
+
+	/**
+	 * Tickets add: a thread holds its own tickets plus all of the tickets
+	 * of the threads waiting on the queues it holds, including the tickets
+	 * those threads hold in turn.
+	 */
+	protected int computeEffectivePriority() {
+		long tickets = priority;
+		for(Iterator i = acquired.iterator();i.hasNext();){//ۼacquiredеȴеĲƱ
+			tickets += ((LotteryQueue)i.next()).totalTickets();
 		}
-			   
-			}
+		return (int) Math.min(tickets, Integer.MAX_VALUE);
+	}
+
+	/** The slot this thread occupies in <tt>waitingOn</tt>, if any. */
+	int slot = -1;
+	/** The tickets this thread holds in <tt>waitingOn</tt>. */
+	int tickets;
 }
 
 // 
@@ -0,0 +1,267 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multilevel feedback queue scheduler. Waiting threads are kept in several
+ * FIFO levels, and the next thread to receive access is always the first
+ * thread in the highest non-empty level. Threads are not given levels
+ * directly; instead, a thread's level is learned from how it uses the
+ * processor:
+ *
+ * <ul>
+ * <li>Every thread starts in the highest level, level 0.
+ * <li>Each time a thread stops running, it is charged for the ticks it ran,
+ * as measured by the machine's timer. Once a thread has run for its level's
+ * allotment, it is moved down a level. The allotment of level <i>i</i> is
+ * <tt>MLFQScheduler.quantum</tt> ticks times 2<sup><i>i</i></sup>, so a
+ * CPU-bound thread that is preempted by the timer interrupt every time slice
+ * sinks to the lowest level.
+ * <li>A thread that blocks, for example waiting for console input, is moved
+ * up a level when it is woken, so interactive threads stay in the highest
+ * levels and are picked ahead of CPU-bound threads.
+ * <li>Every <tt>MLFQScheduler.resetInterval</tt> ticks, every thread is moved
+ * back to level 0, so that CPU-bound threads cannot starve, and a thread that
+ * becomes interactive is noticed.
+ * </ul>
+ *
+ * <p>
+ * Charges accumulate across time slices, so a thread cannot keep its level
+ * by yielding just before the end of each slice.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+	quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+	resetInterval = Config.getInteger("MLFQScheduler.resetInterval",
+					  100*Stats.TimerTicks);
+
+	Lib.assertTrue(numLevels > 0 && quantum > 0 && resetInterval > 0);
+    }
+
+    /**
+     * Allocate a new MLFQ thread queue.
+     *
+     * @param	transferPriority	ignored. Threads in an MLFQ scheduler
+     *					do not donate their levels.
+     * @return	a new MLFQ thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQueue();
+    }
+
+    /**
+     * Return the level of the specified thread. The level is not a priority
+     * that can be set: level 0 is the highest level, and a thread's level
+     * changes as it runs and blocks.
+     *
+     * @param	thread	the thread whose level to return.
+     * @return	the level of the specified thread.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getLevel();
+    }
+
+    /**
+     * Return the number of times the levels have been reset, as of now.
+     */
+    private long currentEpoch() {
+	return Machine.timer().getTime() / resetInterval;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps one FIFO list of threads per level.
+     */
+    protected class MLFQueue extends ThreadQueue {
+	MLFQueue() {
+	    levels = new ArrayList<LinkedList<KThread>>(numLevels);
+	    for (int i=0; i<numLevels; i++)
+		levels.add(new LinkedList<KThread>());
+
+	    epoch = currentEpoch();
+	}
+
+	/**
+	 * Add a thread to the end of its level. If the thread is the current
+	 * thread, it is giving up the processor, and is charged for the time
+	 * it ran; otherwise it was blocked, and is moved up a level.
+	 *
+	 * @param	thread	the thread to add to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+
+	    if (thread == KThread.currentThread())
+		state.charge();
+	    else
+		state.boost();
+
+	    levels.get(state.getLevel()).add(thread);
+	}
+
+	/**
+	 * Remove the first thread from the highest non-empty level, and start
+	 * timing its run.
+	 *
+	 * @return	the next thread, or <tt>null</tt> if the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (epoch != currentEpoch())
+		reset();
+
+	    for (int i=0; i<numLevels; i++) {
+		if (!levels.get(i).isEmpty()) {
+		    KThread thread = levels.get(i).removeFirst();
+		    getThreadState(thread).startRunning();
+		    return thread;
+		}
+	    }
+
+	    return null;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numLevels; i++)
+		Lib.assertTrue(levels.get(i).isEmpty());
+	}
+
+	/**
+	 * Print out the contents of the queue, one level at a time.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numLevels; i++) {
+		System.out.print(i + ":");
+		for (Iterator<KThread> j=levels.get(i).iterator(); j.hasNext(); )
+		    System.out.print(" " + j.next());
+		System.out.println();
+	    }
+	}
+
+	/**
+	 * Move every waiting thread back to level 0, keeping the threads in
+	 * their current order. The threads' own levels are reset lazily, by
+	 * <tt>ThreadState.getLevel()</tt>.
+	 */
+	private void reset() {
+	    epoch = currentEpoch();
+
+	    for (int i=1; i<numLevels; i++) {
+		levels.get(0).addAll(levels.get(i));
+		levels.get(i).clear();
+	    }
+	}
+
+	private ArrayList<LinkedList<KThread>> levels;
+	/** The epoch in which the levels were last reset. */
+	private long epoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and how much of that
+     * level's allotment it has used.
+     */
+    protected class ThreadState {
+	ThreadState() {
+	    runStart = Machine.timer().getTime();
+	    epoch = currentEpoch();
+	}
+
+	/**
+	 * Return this thread's level, first moving it back to level 0 if the
+	 * levels have been reset since it was last scheduled.
+	 *
+	 * @return	this thread's level.
+	 */
+	int getLevel() {
+	    long now = currentEpoch();
+	    if (epoch != now) {
+		epoch = now;
+		level = 0;
+		used = 0;
+	    }
+
+	    return level;
+	}
+
+	/**
+	 * Called when this thread is picked to run next.
+	 */
+	void startRunning() {
+	    runStart = Machine.timer().getTime();
+	}
+
+	/**
+	 * Charge this thread for the ticks since it started running, and move
+	 * it down a level if it has used up its allotment.
+	 */
+	void charge() {
+	    long allotment = (long) quantum << getLevel();
+
+	    used += Machine.timer().getTime() - runStart;
+
+	    if (used >= allotment) {
+		if (level < numLevels-1)
+		    level++;
+		used = 0;
+	    }
+	}
+
+	/**
+	 * Called when this thread is woken after blocking. Move it up a level,
+	 * with a fresh allotment.
+	 */
+	void boost() {
+	    if (getLevel() > 0)
+		level--;
+	    used = 0;
+	}
+
+	/** This thread's level; 0 is the highest. */
+	private int level = 0;
+	/** The ticks this thread has run at its current level. */
+	private long used = 0;
+	/** When this thread was last picked to run. */
+	private long runStart;
+	/** The epoch in which this thread's level was last looked at. */
+	private long epoch;
+    }
+
+    private int numLevels;
+    private int quantum;
+    private int resetInterval;
+}
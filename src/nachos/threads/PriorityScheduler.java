@@ -1,8 +1,6 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.LinkedList;
-import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
 
@@ -145,60 +143,147 @@ public class PriorityScheduler extends Scheduler {
 ThreadState x = pickNextThread();//һѡ߳
 if(x == null)//Ϊnull,򷵻null
 	return null;
-KThread thread = x.thread;
-getThreadState(thread).acquire(this);//õ̸߳Ϊthis̶߳еĶͷ
-//System.out.println(thread.getName());
-return thread;//̷߳
-	    // implement me
-	    //return null;
+x.acquire(this);//õ̸߳Ϊthis̶߳еĶͷ
+return x.thread;//̷߳
 	}
 
 	/**
 	 * Return the next thread that <tt>nextThread()</tt> would return,
-	 * without modifying the state of this queue.
+	 * without modifying the state of this queue. This is the thread at
+	 * the front of the highest non-empty priority level.
 	 *
 	 * @return	the next thread that <tt>nextThread()</tt> would
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-java.util.Iterator i = waitList.iterator();//߳ĵ
-KThread nextthread;
-if(i.hasNext()){
-nextthread = (KThread)i.next();//ȡһ߳
-//System.out.println(nextthread.getName());
-KThread x = null;
-while(i.hasNext()){//Ƚ̵߳Чȼѡģȼͬѡȴʱ
-	x = (KThread)i.next();
-	//System.out.println(x.getName());
-	int a = getThreadState(nextthread).getEffectivePriority();
-	int b = getThreadState(x).getEffectivePriority();
-	if(a<b){
-//		if(a==b){
-//			//if(getThreadState(nextthread).effectWaitForAccessTime>getThreadState(x).effectWaitForAccessTime)
-//				nextthread = x;
-//		}else{
-			nextthread = x;		
-//	}
+	    if (nonEmptyLevels == 0)
+		return null;
+
+	    return first[highestLevel()];
 	}
-}
-return getThreadState(nextthread);
-}else 
-return null;
-		// implement me
-	    //return null;
+
+	/**
+	 * Add a thread to the back of the level for its effective priority.
+	 *
+	 * @param	state	the thread to add.
+	 */
+	protected void add(ThreadState state) {
+	    state.order = numAdded++;
+	    insert(state);
+	}
+
+	/**
+	 * Link a thread into the level for its effective priority, behind
+	 * every thread at that level that has been waiting longer.
+	 *
+	 * @param	state	the thread to link in.
+	 */
+	private void insert(ThreadState state) {
+	    int level = state.getEffectivePriority();
+	    Lib.assertTrue(level >= priorityMinimum && level <= priorityMaximum);
+
+	    ThreadState prev = last[level];
+	    while (prev != null && prev.order > state.order)
+		prev = prev.prevWaiter;
+
+	    state.level = level;
+	    state.prevWaiter = prev;
+	    state.nextWaiter = (prev == null) ? first[level] : prev.nextWaiter;
+
+	    if (state.prevWaiter == null)
+		first[level] = state;
+	    else
+		state.prevWaiter.nextWaiter = state;
+
+	    if (state.nextWaiter == null)
+		last[level] = state;
+	    else
+		state.nextWaiter.prevWaiter = state;
+
+	    nonEmptyLevels |= (1 << level);
+	}
+
+	/**
+	 * Remove a thread that is waiting on this queue.
+	 *
+	 * @param	state	the thread to remove.
+	 */
+	protected void remove(ThreadState state) {
+	    int level = state.level;
+
+	    if (state.prevWaiter == null)
+		first[level] = state.nextWaiter;
+	    else
+		state.prevWaiter.nextWaiter = state.nextWaiter;
+
+	    if (state.nextWaiter == null)
+		last[level] = state.prevWaiter;
+	    else
+		state.nextWaiter.prevWaiter = state.prevWaiter;
+
+	    state.prevWaiter = state.nextWaiter = null;
+
+	    if (first[level] == null)
+		nonEmptyLevels &= ~(1 << level);
+	}
+
+	/**
+	 * Called when the effective priority of a thread waiting on this queue
+	 * may have changed. If it has, move the thread to the level for its
+	 * new effective priority, keeping its place among the threads there by
+	 * how long it has been waiting.
+	 *
+	 * @param	state	the waiting thread.
+	 */
+	protected void reposition(ThreadState state) {
+	    if (state.getEffectivePriority() == state.level)
+		return;
+
+	    remove(state);
+	    insert(state);
+	}
+
+	/**
+	 * Return the highest effective priority of the threads waiting on this
+	 * queue, or -1 if there are none.
+	 */
+	protected int maxWaitingPriority() {
+	    return (nonEmptyLevels == 0) ? -1 : highestLevel();
+	}
+
+	/**
+	 * Return the highest priority level that has a waiting thread. The
+	 * queue must not be empty.
+	 */
+	private int highestLevel() {
+	    return 31 - Integer.numberOfLeadingZeros(nonEmptyLevels);
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int level=priorityMaximum; level>=priorityMinimum; level--) {
+		for (ThreadState state=first[level]; state!=null;
+		     state=state.nextWaiter)
+		    System.out.print(" " + state.thread + "(" + level + ")");
+	    }
+	    System.out.println();
 	}
 
+protected KThread lockHolder = null;//ͷ
+
+	/** The first and last waiting thread at each priority level. */
+	private ThreadState[] first = new ThreadState[priorityMaximum+1];
+	private ThreadState[] last = new ThreadState[priorityMaximum+1];
+	/** A bit for each priority level that has a waiting thread. */
+	private int nonEmptyLevels = 0;
+	/** The number of threads ever added, used to order the waiters. */
+	private long numAdded = 0;
+
 	/**
 	 * <tt>true</tt> if this queue should transfer priority from waiting
 	 * threads to the owning thread.
 	 */
-protected KThread lockHolder = null;//ͷ
-protected LinkedList<KThread> waitList = new LinkedList<KThread>();
 	public boolean transferPriority;
     }
 
@@ -239,32 +324,7 @@ protected LinkedList<KThread> waitList = new LinkedList<KThread>();
 	 */
 
 	public int getEffectivePriority() {
-Lib.assertTrue(Machine.interrupt().disabled());
-if(effectivePriority == invalidPriority&&!acquired.isEmpty()){
-	effectivePriority = priority;//ȽԼȼЧȼ
-	for(Iterator i = acquired.iterator();i.hasNext();){//Ƚacquiredееȴе̵߳ȼ
-		for(Iterator j = ((PriorityQueue)i.next()).waitList.iterator();j.hasNext();){
-			ThreadState ts = getThreadState((KThread)j.next());
-			if(ts.priority>effectivePriority){
-				effectivePriority = ts.priority;
-				//effectWaitForAccessTime = ts.thread.waitForAccessTime;
-			}
-		}
-	}
-	//System.out.println("hh");
-	return effectivePriority;
-}else{ 
-	//effectWaitForAccessTime=this.thread.waitForAccessTime;
-	if(effectivePriority==-2){//==-2֤ȼ̶߳вȼ
-		//System.out.println("ûзȼת"+this.thread.getName()+":"+this.priority);
-		return priority;
-	}
-	 //System.out.println("ȼתδִ"+this.thread.getName()+":"+this.priority+":"+this.effectivePriority);
-	 return effectivePriority;//߳ûִУô֮ǰЧȼһ
-	//return priority;
-}
-		// implement me
-	   
+	    return effectivePriority;
 	}
 
 	/**
@@ -277,7 +337,57 @@ if(effectivePriority == invalidPriority&&!acquired.isEmpty()){
 		return;
 	    
 	    this.priority = priority;
-	    // implement me
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Recompute the effective priority of the associated thread: the
+	 * highest of its own priority and the effective priorities of the
+	 * threads waiting on the queues it holds. If it changed, move the
+	 * thread within the queue it is waiting on, and pass the change on to
+	 * the holder of that queue, and so on along the chain of waiting
+	 * threads until a thread's effective priority does not change.
+	 */
+	protected void updateEffectivePriority() {
+	    ThreadState state = this;
+
+	    while (true) {
+		int donated = state.computeEffectivePriority();
+
+		if (donated == state.effectivePriority)
+		    return;
+		state.effectivePriority = donated;
+
+		PriorityQueue waitQueue = state.waitingOn;
+		if (waitQueue == null)
+		    return;
+
+		waitQueue.reposition(state);
+
+		if (!waitQueue.transferPriority || waitQueue.lockHolder == null)
+		    return;
+		state = getThreadState(waitQueue.lockHolder);
+
+		// stop if the threads are deadlocked waiting on each other
+		if (state == this)
+		    return;
+	    }
+	}
+
+	/**
+	 * Compute the effective priority of the associated thread from its
+	 * own priority and the queues it holds.
+	 *
+	 * @return	the highest of the thread's priority and the effective
+	 *		priorities of the threads waiting on the queues it holds.
+	 */
+	protected int computeEffectivePriority() {
+	    int donated = priority;
+	    for (Iterator i=acquired.iterator(); i.hasNext(); ) {
+		PriorityQueue queue = (PriorityQueue) i.next();
+		donated = Math.max(donated, queue.maxWaitingPriority());
+	    }
+	    return donated;
 	}
 
 	/**
@@ -293,8 +403,13 @@ if(effectivePriority == invalidPriority&&!acquired.isEmpty()){
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-waitQueue.waitList.add(this.thread);//̼߳뵽ȴ
-// implement me
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);//̼߳뵽ȴ
+
+	    if (waitQueue.transferPriority && waitQueue.lockHolder != null)
+		getThreadState(waitQueue.lockHolder).updateEffectivePriority();
 	}
 
 	/**
@@ -308,18 +423,22 @@ waitQueue.waitList.add(this.thread);//
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-waitQueue.waitList.remove(this.thread);//дڸ̣߳ɾ
+if(waitingOn == waitQueue){//дڸ̣߳ɾ
+	waitQueue.remove(this);
+	waitingOn = null;
+}
 //if(waitQueue.waitList.isEmpty()) acquired.remove(waitQueue);
+KThread previousHolder = waitQueue.lockHolder;
 waitQueue.lockHolder = this.thread;//readyQueuelockHolderΪִ̣߳LockwaitQueuelockHolderΪߣwaitForJoinlockHolderΪִjoin̡߳
 if(waitQueue.transferPriority){//ȼתִ
-this.effectivePriority = invalidPriority;
-acquired.add(waitQueue);//ȴ̵߳Ķм̵߳ĵȴмϼ
+	if(previousHolder!=null&&previousHolder!=this.thread){//ԭ߲ٵõöеľ
+		ThreadState previous = getThreadState(previousHolder);
+		if(previous.acquired.remove(waitQueue))
+			previous.updateEffectivePriority();
+	}
+	acquired.add(waitQueue);//ȴ̵߳Ķм̵߳ĵȴмϼ
+	updateEffectivePriority();
 }
-//if(waitQueue!=KThread.getReadyQueue()&&waitQueue.transferPriority){
-//acquired.add(waitQueue);//ȴ̵߳Ķм̵߳ĵȴмϼ
-////this.effectivePriority = invalidPriority;
-//
-//}
 	}	
 
 	/** The thread with which this object is associated. */
@@ -333,6 +452,15 @@ protected HashSet<nachos.threads.PriorityScheduler.PriorityQueue> acquired = new
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+
+	/** The queue this thread is waiting on, if any. */
+	protected PriorityQueue waitingOn = null;
+	/** The priority level this thread is queued at in <tt>waitingOn</tt>. */
+	protected int level;
+	/** The neighbouring threads at the same level of <tt>waitingOn</tt>. */
+	protected ThreadState prevWaiter = null, nextWaiter = null;
+	/** When this thread was added to <tt>waitingOn</tt>. */
+	protected long order;
     }
     
 
@@ -0,0 +1,318 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and gives each thread a share of the processor
+ * proportional to its tickets. Instead of holding a lottery, each thread is
+ * given a <i>stride</i> inversely proportional to its tickets, and a
+ * <i>pass</i>. The waiting thread with the lowest pass is dequeued next, and
+ * its pass is advanced by its stride. The result is the same proportional
+ * share as a lottery, but deterministic, and without the lottery's variance
+ * over short runs.
+ *
+ * <p>
+ * Tickets are transferred through locks and through joins exactly as in
+ * <tt>LotteryScheduler</tt>: a thread holds its own tickets plus all of the
+ * tickets of the threads waiting on the queues it holds.
+ */
+public class StrideScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 0;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * The stride of a thread with a single ticket. A thread with <i>n</i>
+     * tickets has a stride of <tt>strideOne / n</tt>.
+     */
+    private static final long strideOne = 1L << 32;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected StrideThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideThreadState(thread);
+
+	return (StrideThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its waiting threads in a binary
+     * min-heap ordered by pass.
+     */
+    protected class StrideQueue extends PriorityQueue {
+	StrideQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Dequeue the waiting thread with the lowest pass, and advance its
+	 * pass by its stride.
+	 *
+	 * @return	the next thread, or <tt>null</tt> if the queue is
+	 *		empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    StrideThreadState state = pickNextThread();
+	    if (state == null)
+		return null;
+
+	    globalPass = state.pass;
+	    state.pass += stride(state.tickets);
+
+	    state.acquire(this);
+	    return state.thread;
+	}
+
+	protected StrideThreadState pickNextThread() {
+	    return (numWaiting == 0) ? null : heap[0];
+	}
+
+	/**
+	 * Add a thread, giving it back whatever was left of its pass
+	 * relative to the queue it last left.
+	 */
+	protected void add(ThreadState state) {
+	    StrideThreadState strideState = (StrideThreadState) state;
+
+	    if (numWaiting == heap.length)
+		heap = Arrays.copyOf(heap, numWaiting*2);
+
+	    strideState.tickets = strideState.getEffectivePriority();
+	    strideState.pass = globalPass + strideState.remain;
+	    strideState.order = numAdded++;
+	    totalTickets += strideState.tickets;
+
+	    siftUp(numWaiting++, strideState);
+	}
+
+	/**
+	 * Remove a thread, remembering how far its pass is ahead of this
+	 * queue so that it keeps its place in the next queue it joins.
+	 */
+	protected void remove(ThreadState state) {
+	    StrideThreadState strideState = (StrideThreadState) state;
+	    int index = strideState.index;
+
+	    StrideThreadState last = heap[--numWaiting];
+	    heap[numWaiting] = null;
+
+	    if (last != strideState) {
+		siftDown(index, last);
+		if (heap[index] == last)
+		    siftUp(index, last);
+	    }
+
+	    totalTickets -= strideState.tickets;
+	    strideState.remain = Math.max(strideState.pass - globalPass, 0);
+	    strideState.index = -1;
+	}
+
+	/**
+	 * Scale what is left of a thread's pass when its tickets change, so
+	 * that a thread that is donated tickets runs sooner.
+	 */
+	protected void reposition(ThreadState state) {
+	    StrideThreadState strideState = (StrideThreadState) state;
+
+	    int tickets = strideState.getEffectivePriority();
+	    if (tickets == strideState.tickets)
+		return;
+
+	    long remain = strideState.pass - globalPass;
+	    if (remain > 0) {
+		double scale = (double) stride(tickets) /
+		    stride(strideState.tickets);
+		strideState.pass = globalPass + (long) (remain * scale);
+	    }
+
+	    totalTickets += tickets - strideState.tickets;
+	    strideState.tickets = tickets;
+
+	    int index = strideState.index;
+	    siftDown(index, strideState);
+	    if (heap[index] == strideState)
+		siftUp(index, strideState);
+	}
+
+	/**
+	 * Return the total number of tickets held by the waiting threads.
+	 */
+	long totalTickets() {
+	    return totalTickets;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numWaiting; i++)
+		System.out.print(" " + heap[i].thread + "(" + heap[i].pass + ")");
+	    System.out.println();
+	}
+
+	private void siftUp(int i, StrideThreadState state) {
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!state.before(heap[parent]))
+		    break;
+
+		place(i, heap[parent]);
+		i = parent;
+	    }
+	    place(i, state);
+	}
+
+	private void siftDown(int i, StrideThreadState state) {
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= numWaiting)
+		    break;
+		if (child+1 < numWaiting && heap[child+1].before(heap[child]))
+		    child++;
+		if (!heap[child].before(state))
+		    break;
+
+		place(i, heap[child]);
+		i = child;
+	    }
+	    place(i, state);
+	}
+
+	private void place(int i, StrideThreadState state) {
+	    heap[i] = state;
+	    state.index = i;
+	}
+
+	private StrideThreadState[] heap = new StrideThreadState[16];
+	private int numWaiting = 0;
+	private long numAdded = 0;
+	private long totalTickets = 0;
+	/** The pass of the thread most recently dequeued. */
+	private long globalPass = 0;
+    }
+
+    /**
+     * Return the stride of a thread with the specified number of tickets. A
+     * thread with no tickets has the stride of a thread with one.
+     */
+    private static long stride(int tickets) {
+	return strideOne / Math.max(tickets, 1);
+    }
+
+    /**
+     * The scheduling state of a thread under stride scheduling.
+     */
+    protected class StrideThreadState extends ThreadState {
+	public StrideThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Tickets add: a thread holds its own tickets plus all of the tickets
+	 * of the threads waiting on the queues it holds.
+	 */
+	protected int computeEffectivePriority() {
+	    long tickets = priority;
+	    for (PriorityQueue queue : acquired)
+		tickets += ((StrideQueue) queue).totalTickets();
+
+	    return (int) Math.min(tickets, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Test whether this thread comes before another in a stride queue.
+	 * Threads with the same pass leave in the order they arrived.
+	 */
+	boolean before(StrideThreadState state) {
+	    return pass < state.pass ||
+		(pass == state.pass && order < state.order);
+	}
+
+	/** The pass of this thread in the queue it is waiting on. */
+	long pass = 0;
+	/** How far this thread's pass was ahead when it left a queue. */
+	long remain = 0;
+	/** The tickets this thread holds in the queue it is waiting on. */
+	int tickets;
+	/** The position of this thread in its queue's heap. */
+	int index = -1;
+    }
+}
@@ -0,0 +1,290 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Scheduling statistics for a thread, or for all the threads of a scheduler:
+ * how many times the thread was switched in, how long it waited on the ready
+ * queue each time, and how long it ran each time it was switched in. All
+ * times are in timer ticks.
+ *
+ * <p>
+ * Ready-queue waits are also kept in a histogram with power-of-two buckets.
+ * Bucket 0 counts waits of no ticks, and bucket <i>i</i> counts waits of at
+ * least 2<sup><i>i</i>-1</sup> and less than 2<sup><i>i</i></sup> ticks.
+ *
+ * <p>
+ * <tt>KThread</tt> records statistics for every thread except the idle
+ * thread. If <tt>ThreadedKernel.printThreadStats</tt> is set, the statistics
+ * of every thread and the scheduler's totals are printed when the machine
+ * halts.
+ */
+public class ThreadStats {
+    /**
+     * Allocate new, empty statistics for a thread.
+     *
+     * @param	thread	the thread the statistics are for.
+     */
+    ThreadStats(KThread thread) {
+	this.thread = thread;
+	this.name = null;
+    }
+
+    private ThreadStats(String name) {
+	this.thread = null;
+	this.name = name;
+    }
+
+    /**
+     * Return the name these statistics are printed under: the thread's full
+     * name, or the name of the scheduler class for the totals.
+     *
+     * @return	the name of the thread or scheduler.
+     */
+    public String getName() {
+	return (thread != null) ? thread.toString() : name;
+    }
+
+    /**
+     * Return the number of times the thread was switched in.
+     *
+     * @return	the number of context switches to the thread.
+     */
+    public int getSwitches() {
+	return numSwitches;
+    }
+
+    /**
+     * Return the number of times the thread waited on the ready queue.
+     *
+     * @return	the number of ready-queue waits.
+     */
+    public int getReadyWaits() {
+	return numReadyWaits;
+    }
+
+    /**
+     * Return the total time the thread spent waiting on the ready queue.
+     *
+     * @return	the total ready-queue wait, in ticks.
+     */
+    public long getReadyWaitTicks() {
+	return readyWaitTicks;
+    }
+
+    /**
+     * Return the longest time the thread waited on the ready queue.
+     *
+     * @return	the longest ready-queue wait, in ticks.
+     */
+    public long getMaxReadyWait() {
+	return maxReadyWait;
+    }
+
+    /**
+     * Return the number of ready-queue waits in the specified histogram
+     * bucket.
+     *
+     * @param	bucket	the bucket, between 0 and <tt>numBuckets</tt>-1.
+     * @return	the number of waits in the bucket.
+     */
+    public int getReadyWaitHistogram(int bucket) {
+	return readyWaitHistogram[bucket];
+    }
+
+    /**
+     * Return the number of time slices the thread ran, each ending when the
+     * thread was switched out.
+     *
+     * @return	the number of completed time slices.
+     */
+    public int getSlices() {
+	return numSlices;
+    }
+
+    /**
+     * Return the total time the thread ran in its completed time slices.
+     *
+     * @return	the total run time, in ticks.
+     */
+    public long getRunTicks() {
+	return runTicks;
+    }
+
+    /**
+     * Return the longest time slice the thread ran.
+     *
+     * @return	the longest time slice, in ticks.
+     */
+    public long getMaxSlice() {
+	return maxSlice;
+    }
+
+    /**
+     * Return the totals of every thread's statistics under the current
+     * scheduler.
+     *
+     * @return	the scheduler's statistics.
+     */
+    public static ThreadStats getTotals() {
+	return totals;
+    }
+
+    /**
+     * Return the statistics of every thread that has been forked, except the
+     * idle thread, in the order they were forked. The main thread comes
+     * first. The statistics of each thread are only kept if
+     * <tt>ThreadedKernel.printThreadStats</tt> is set, since keeping them
+     * keeps the thread; otherwise there are none.
+     *
+     * @return	the statistics of all the threads.
+     */
+    public static Iterator<ThreadStats> threads() {
+	return allThreads.iterator();
+    }
+
+    /**
+     * Print the statistics of every thread, then the scheduler's totals and
+     * ready-wait histogram.
+     */
+    public static void printAll() {
+	System.out.println("Scheduling stats:");
+
+	for (Iterator<ThreadStats> i=threads(); i.hasNext(); )
+	    i.next().print();
+
+	totals.print();
+	totals.printHistogram();
+    }
+
+    /**
+     * Print these statistics on a single line.
+     */
+    public void print() {
+	System.out.println("  " + getName() + ": switches " + numSwitches
+			   + ", ready wait mean " + mean(readyWaitTicks,
+							 numReadyWaits)
+			   + " max " + maxReadyWait
+			   + ", slice mean " + mean(runTicks, numSlices)
+			   + " max " + maxSlice
+			   + ", ran " + runTicks);
+    }
+
+    /**
+     * Print the non-empty buckets of the ready-wait histogram.
+     */
+    public void printHistogram() {
+	System.out.print("  " + getName() + " ready wait histogram:");
+
+	for (int i=0; i<numBuckets; i++) {
+	    if (readyWaitHistogram[i] > 0) {
+		long low = (i == 0) ? 0 : 1L << (i-1);
+		System.out.print(" " + low + "+:" + readyWaitHistogram[i]);
+	    }
+	}
+	System.out.println();
+    }
+
+    /**
+     * Add these statistics to the list printed when the machine halts, if
+     * the list is going to be printed.
+     */
+    void register() {
+	if (printing)
+	    allThreads.add(this);
+    }
+
+    /**
+     * Name the totals after the scheduler, and print all the statistics when
+     * the machine halts if <tt>ThreadedKernel.printThreadStats</tt> is set.
+     */
+    static void initialize(Scheduler scheduler) {
+	totals = new ThreadStats(scheduler.getClass().getName());
+
+	printing = Config.getBoolean("ThreadedKernel.printThreadStats", false);
+	if (printing) {
+	    Machine.addHaltHandler(new Runnable() {
+		    public void run() { printAll(); }
+		});
+	}
+    }
+
+    /**
+     * Called by <tt>KThread.ready()</tt>.
+     */
+    void readied(long time) {
+	readySince = time;
+    }
+
+    /**
+     * Called by <tt>KThread.runNextThread()</tt> when the thread is taken
+     * off the ready queue.
+     */
+    void dequeued(long time) {
+	long wait = time - readySince;
+
+	recordReadyWait(wait);
+	totals.recordReadyWait(wait);
+    }
+
+    /**
+     * Called by <tt>KThread.restoreState()</tt>.
+     */
+    void switchedIn() {
+	numSwitches++;
+	totals.numSwitches++;
+    }
+
+    /**
+     * Called by <tt>KThread.saveState()</tt> with the length of the time
+     * slice that just ended.
+     */
+    void switchedOut(long slice) {
+	recordSlice(slice);
+	totals.recordSlice(slice);
+    }
+
+    private void recordReadyWait(long wait) {
+	numReadyWaits++;
+	readyWaitTicks += wait;
+	maxReadyWait = Math.max(maxReadyWait, wait);
+
+	int bucket = 64 - Long.numberOfLeadingZeros(wait);
+	readyWaitHistogram[Math.min(bucket, numBuckets-1)]++;
+    }
+
+    private void recordSlice(long slice) {
+	numSlices++;
+	runTicks += slice;
+	maxSlice = Math.max(maxSlice, slice);
+    }
+
+    private static long mean(long total, int count) {
+	return count > 0 ? total / count : 0;
+    }
+
+    /** The number of buckets in a ready-wait histogram. */
+    public static final int numBuckets = 32;
+
+    private final KThread thread;
+    private final String name;
+
+    private int numSwitches = 0;
+
+    private int numReadyWaits = 0;
+    private long readyWaitTicks = 0, maxReadyWait = 0;
+    private int[] readyWaitHistogram = new int[numBuckets];
+    private long readySince;
+
+    private int numSlices = 0;
+    private long runTicks = 0, maxSlice = 0;
+
+    private static ThreadStats totals = new ThreadStats("(no scheduler)");
+    private static ArrayList<ThreadStats> allThreads =
+	new ArrayList<ThreadStats>();
+    /** <tt>true</tt> if every thread's statistics are printed at halt. */
+    private static boolean printing = false;
+}
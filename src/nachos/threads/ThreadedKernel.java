@@ -21,6 +21,7 @@ public class ThreadedKernel extends Kernel {
 	// set scheduler
 	String schedulerName = Config.getString("ThreadedKernel.scheduler");
 	scheduler = (Scheduler) Lib.constructObject(schedulerName);
+	ThreadStats.initialize(scheduler);
 
 	// set fileSystem
 	String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
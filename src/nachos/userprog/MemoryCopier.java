@@ -0,0 +1,345 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Copies data between a user process's virtual memory and the kernel. A
+ * transfer is translated one page at a time through the process's
+ * <tt>lookUpPageTable()</tt>, so a subclass of <tt>UserProcess</tt> that
+ * manages its pages differently sees every page the kernel touches. Runs of
+ * pages that are contiguous in physical memory are copied all at once.
+ *
+ * <p>
+ * The pages of a transfer are pinned with the process's <tt>pinPages()</tt>
+ * while it runs, so that translating one page cannot move another.
+ *
+ * <p>
+ * Like <tt>Processor.translate()</tt>, a copier sets the used bit of every
+ * page it transfers, and the dirty bit of every page it writes. A transfer
+ * stops at the first byte that cannot be translated: an address outside the
+ * address space, an invalid page, a read-only page being written, or a page
+ * whose physical page number is out of range. The copier then records a
+ * <i>fault</i>, the address and the exception the processor would have
+ * raised, which can be examined until the next transfer.
+ *
+ * <p>
+ * A copier allocates nothing once it has been created, so transfers to and
+ * from a <tt>ByteBuffer</tt> the caller keeps can be done without any
+ * garbage. For I/O that should not be staged in the kernel at all,
+ * <tt>map()</tt> returns the runs of main memory behind a range of virtual
+ * memory, for a file to read into or write from directly.
+ */
+public class MemoryCopier {
+    /**
+     * Allocate a new copier for the specified process.
+     *
+     * @param	process	the process whose virtual memory to copy.
+     */
+    public MemoryCopier(UserProcess process) {
+	this.process = process;
+
+	numPhysPages = Machine.processor().getNumPhysPages();
+    }
+
+    /**
+     * A copy between physical memory and something else, for one run of
+     * physically contiguous bytes.
+     */
+    public interface Transfer {
+	/**
+	 * Copy a run of bytes to or from main memory.
+	 *
+	 * @param	memory	the processor's main memory.
+	 * @param	paddr	the first physical address of the run.
+	 * @param	length	the number of bytes in the run.
+	 * @param	done	the number of bytes already transferred, before
+	 *			this run.
+	 * @return	the number of bytes actually copied. If this is less
+	 *		than <tt>length</tt>, the transfer stops.
+	 */
+	public int copy(byte[] memory, int paddr, int length, int done);
+    }
+
+    /**
+     * Transfer data from virtual memory to the specified array.
+     *
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to transfer.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int read(int vaddr, byte[] data, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= data.length);
+
+	arrayTransfer.set(data, offset, false);
+	return transfer(vaddr, length, false, arrayTransfer);
+    }
+
+    /**
+     * Transfer data from the specified array to virtual memory.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	data	the array containing the data to transfer.
+     * @param	offset	the first byte to transfer from the array.
+     * @param	length	the number of bytes to transfer.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int write(int vaddr, byte[] data, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= data.length);
+
+	arrayTransfer.set(data, offset, true);
+	return transfer(vaddr, length, true, arrayTransfer);
+    }
+
+    /**
+     * Transfer data from virtual memory into the remaining space of the
+     * specified buffer. The buffer's position is advanced past the bytes
+     * transferred.
+     *
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	buffer	the buffer where the data will be stored.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int read(int vaddr, ByteBuffer buffer) {
+	bufferTransfer.set(buffer, false);
+	return transfer(vaddr, buffer.remaining(), false, bufferTransfer);
+    }
+
+    /**
+     * Transfer the remaining data in the specified buffer to virtual memory.
+     * The buffer's position is advanced past the bytes transferred.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	buffer	the buffer containing the data to transfer.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int write(int vaddr, ByteBuffer buffer) {
+	bufferTransfer.set(buffer, true);
+	return transfer(vaddr, buffer.remaining(), true, bufferTransfer);
+    }
+
+    /**
+     * Translate the specified range of virtual memory, and return buffers
+     * that wrap each run of physically contiguous bytes in main memory, in
+     * order. If the translation faults, the buffers cover the bytes before
+     * the fault.
+     *
+     * <p>
+     * The buffers are only good as long as the pages stay where they are. A
+     * process that can move its pages, for example by evicting them, must
+     * keep them in place until it is done with the buffers. The pages they
+     * cover have their used bits set, and their dirty bits if
+     * <tt>writing</tt> is <tt>true</tt>, as if they had been transferred.
+     *
+     * @param	vaddr	the first byte of virtual memory to map.
+     * @param	length	the number of bytes to map.
+     * @param	writing	<tt>true</tt> if the buffers will be stored into.
+     * @return	the buffers.
+     */
+    public ByteBuffer[] map(int vaddr, int length, boolean writing) {
+	runs.clear();
+	transfer(vaddr, length, writing, mapTransfer);
+
+	return runs.toArray(new ByteBuffer[runs.size()]);
+    }
+
+    /**
+     * Translate the specified range of virtual memory, and hand each run of
+     * physically contiguous bytes to a transfer.
+     *
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	writing	<tt>true</tt> if the transfer writes virtual memory.
+     * @param	transfer	the copy to perform on each run.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int transfer(int vaddr, int length, boolean writing,
+			Transfer transfer) {
+	Lib.assertTrue(length >= 0);
+
+	faultCause = -1;
+
+	int pinned = process.pinPages(vaddr, length);
+	int amount = transferPinned(vaddr, length, writing, transfer);
+	process.unpinPages(vaddr, pinned);
+
+	return amount;
+    }
+
+    private int transferPinned(int vaddr, int length, boolean writing,
+			       Transfer transfer) {
+	byte[] memory = Machine.processor().getMemory();
+
+	int done = 0;
+	int runStart = 0, runAddress = 0, runLength = 0;
+
+	while (done < length) {
+	    int addr = vaddr + done;
+	    int offset = Processor.offsetFromAddress(addr);
+	    int amount = Math.min(length - done, pageSize - offset);
+
+	    int ppn = translate(addr, writing);
+	    if (ppn == -1)
+		break;
+
+	    int paddr = Processor.makeAddress(ppn, offset);
+
+	    if (runLength > 0 && paddr != runAddress + runLength) {
+		int copied = transfer.copy(memory, runAddress, runLength,
+					   runStart);
+		if (copied < runLength)
+		    return runStart + copied;
+
+		runLength = 0;
+	    }
+
+	    if (runLength == 0) {
+		runStart = done;
+		runAddress = paddr;
+	    }
+
+	    runLength += amount;
+	    done += amount;
+	}
+
+	if (runLength == 0)
+	    return done;
+
+	return runStart + transfer.copy(memory, runAddress, runLength,
+					runStart);
+    }
+
+    /**
+     * Test whether the last transfer stopped because of a fault.
+     *
+     * @return	<tt>true</tt> if the last transfer faulted.
+     */
+    public boolean faulted() {
+	return faultCause != -1;
+    }
+
+    /**
+     * Return the virtual address at which the last transfer faulted.
+     *
+     * @return	the first address that could not be transferred.
+     */
+    public int getFaultAddress() {
+	Lib.assertTrue(faulted());
+	return faultAddress;
+    }
+
+    /**
+     * Return the exception the processor would have raised at the address
+     * where the last transfer faulted; one of the
+     * <tt>Processor.exceptionZZZ</tt> constants.
+     *
+     * @return	the cause of the fault.
+     */
+    public int getFaultCause() {
+	Lib.assertTrue(faulted());
+	return faultCause;
+    }
+
+    /**
+     * Translate a virtual address, and set the used and dirty bits of its
+     * page.
+     *
+     * @return	the physical page number, or -1 after recording a fault.
+     */
+    private int translate(int vaddr, boolean writing) {
+	TranslationEntry entry = null;
+	if (vaddr >= 0)
+	    entry = process.lookUpPageTable(Processor.pageFromAddress(vaddr));
+
+	if (entry == null)
+	    return fault(vaddr, Processor.exceptionAddressError);
+	if (!entry.valid)
+	    return fault(vaddr, Processor.exceptionPageFault);
+	if (writing && entry.readOnly)
+	    return fault(vaddr, Processor.exceptionReadOnly);
+	if (entry.ppn < 0 || entry.ppn >= numPhysPages)
+	    return fault(vaddr, Processor.exceptionBusError);
+
+	entry.used = true;
+	if (writing)
+	    entry.dirty = true;
+
+	return entry.ppn;
+    }
+
+    private int fault(int vaddr, int cause) {
+	faultAddress = vaddr;
+	faultCause = cause;
+
+	Lib.debug(dbgProcess, "\tcopy fault at 0x" + Lib.toHexString(vaddr)
+		  + ": " + Processor.exceptionNames[cause]);
+	return -1;
+    }
+
+    private class ArrayTransfer implements Transfer {
+	void set(byte[] data, int offset, boolean writing) {
+	    this.data = data;
+	    this.offset = offset;
+	    this.writing = writing;
+	}
+
+	public int copy(byte[] memory, int paddr, int length, int done) {
+	    if (writing)
+		System.arraycopy(data, offset+done, memory, paddr, length);
+	    else
+		System.arraycopy(memory, paddr, data, offset+done, length);
+
+	    return length;
+	}
+
+	private byte[] data;
+	private int offset;
+	private boolean writing;
+    }
+
+    private class BufferTransfer implements Transfer {
+	void set(ByteBuffer buffer, boolean writing) {
+	    this.buffer = buffer;
+	    this.writing = writing;
+	}
+
+	public int copy(byte[] memory, int paddr, int length, int done) {
+	    if (writing)
+		buffer.get(memory, paddr, length);
+	    else
+		buffer.put(memory, paddr, length);
+
+	    return length;
+	}
+
+	private ByteBuffer buffer;
+	private boolean writing;
+    }
+
+    private class MapTransfer implements Transfer {
+	public int copy(byte[] memory, int paddr, int length, int done) {
+	    runs.add(ByteBuffer.wrap(memory, paddr, length));
+	    return length;
+	}
+    }
+
+    private UserProcess process;
+    private int numPhysPages;
+
+    private ArrayTransfer arrayTransfer = new ArrayTransfer();
+    private BufferTransfer bufferTransfer = new BufferTransfer();
+    private MapTransfer mapTransfer = new MapTransfer();
+    private ArrayList<ByteBuffer> runs = new ArrayList<ByteBuffer>();
+
+    private int faultAddress;
+    private int faultCause = -1;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgProcess = 'a';
+}
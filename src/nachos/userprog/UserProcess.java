@@ -5,6 +5,7 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.LinkedList;
 
@@ -42,6 +43,7 @@ descriptors[1] = stdout;
 parent=null;
 children=new LinkedList<UserProcess>();
 childrenExitStatus = new HashMap<Integer, Integer>();
+copier = new MemoryCopier(this);
 
     }
     
@@ -146,60 +148,60 @@ numOfRunningProcess++;
      * @return	the number of bytes successfully transferred.
      */
     public int readVirtualMemory(int vaddr, byte[] data, int offset,
-				 int length) {//ַݶض飬ȽַתΪַٽݴڴ浽ض
-	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
+				 int length) {//ַݶض飬copierҳ벢ϲҳ
+	int amount = copier.read(vaddr, data, offset, length);
 
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	//if (vaddr < 0 || vaddr >= memory.length)
-	//    return 0;
-
-	//int amount = Math.min(length, memory.length-vaddr);
-	//System.arraycopy(memory, vaddr, data, offset, amount);
+	if (copier.faulted())
+	    Lib.debug(dbgProcess, "readVirtualMemory: " +
+		      Processor.exceptionNames[copier.getFaultCause()] +
+		      " at 0x" + Lib.toHexString(copier.getFaultAddress()));
 
-	//return amount;
-	
-	
-	if (vaddr < 0 || vaddr +length-1>Machine.processor().makeAddress(numPages-1, pageSize-1)){
-		Lib.debug(dbgProcess, "readVirtualMemory:Invalid virtual Address");
-		return 0;
-	}
+	return amount;
+    }
 
+    /**
+     * Transfer data from this process's virtual memory into the remaining
+     * space of the specified buffer, advancing the buffer's position past
+     * the bytes transferred. Unlike the other forms of
+     * <tt>readVirtualMemory()</tt>, this allocates nothing.
+     *
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	buffer	the buffer where the data will be stored.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int readVirtualMemory(int vaddr, ByteBuffer buffer) {
+	return copier.read(vaddr, buffer);
+    }
 
-int transferredCounter=0;//Ѿȡ˵
-//vaddrΪʼַַ
-int endVAddr=vaddr+length-1;//ַַ
-int startVirtualPage=Processor.pageFromAddress(vaddr);//ʼҳ
-int endVirtualPage=Processor.pageFromAddress(endVAddr);//ҳ
-for(int i=startVirtualPage;i<=endVirtualPage;i++){//һҳһҳ
-if(!lookUpPageTable(i).valid){
-	break;
-}
-int pageStartVirtualAddress=Processor.makeAddress(i, 0);//ַҳ濪ʼ
-int pageEndVirtualAddress=Processor.makeAddress(i, pageSize-1);//ַҳ
-int addrOffset;
-int amount=0;
-if(vaddr>pageStartVirtualAddress&&endVAddr<pageEndVirtualAddress){//СһҳҴҳв
-	addrOffset=vaddr-pageStartVirtualAddress;//ַʼҳ濪ʼƫ
-	amount=length;//СһҳҳΪݳ
-}else if(vaddr<=pageStartVirtualAddress&&endVAddr<pageEndVirtualAddress){//һҳҪݸպôҳ濪ʼҪѾһҳ
-	addrOffset=0;//ȻǶ˲ֹһҳֻһҳǡҳ濪ʼˣƫΪ0
-	amount=endVAddr-pageStartVirtualAddress+1;//ȡһҳ
-}else if(vaddr>pageStartVirtualAddress&&endVAddr>=pageEndVirtualAddress){//ݲֹһҳڶǵһҳ
-	addrOffset=vaddr-pageStartVirtualAddress;
-	amount=pageEndVirtualAddress-vaddr+1;
-}else{//мҳƫ͸ҳȡ
-	addrOffset=0;
-	amount=pageSize;
-}
-int paddr=Processor.makeAddress(lookUpPageTable(i).ppn, addrOffset);//ҳ濪ʼַ
-System.arraycopy(memory, paddr, data, offset+transferredCounter, amount);//ַĸҳݶȡ
-transferredCounter+=amount;//ϸҳȡ	
-}
+    /**
+     * Keep the pages backing the specified range of virtual memory where they
+     * are in physical memory, until <tt>unpinPages()</tt> is called. Used
+     * while the kernel copies to or from the range, or lets a file read or
+     * write it directly. Pinning stops at the first page that cannot be
+     * pinned.
+     *
+     * <p>
+     * A <tt>UserProcess</tt> never moves its pages, so this does nothing.
+     * Subclasses that do move pages should override it.
+     *
+     * @param	vaddr	the first byte of the range.
+     * @param	length	the number of bytes in the range.
+     * @return	the number of pages pinned, starting with the page containing
+     *		<tt>vaddr</tt>.
+     */
+    protected int pinPages(int vaddr, int length) {
+	return 0;
+    }
 
-return transferredCounter;
+    /**
+     * Release pages pinned by <tt>pinPages()</tt>.
+     *
+     * @param	vaddr	the first byte of the range that was pinned.
+     * @param	count	the number of pages that were pinned.
+     */
+    protected void unpinPages(int vaddr, int count) {
     }
+
 protected TranslationEntry lookUpPageTable(int vpn) {//ڴҵҳжӦĿ
     if (pageTable == null)
         return null;
@@ -237,60 +239,29 @@ protected TranslationEntry lookUpPageTable(int vpn) {//
      * @return	the number of bytes successfully transferred.
      */
     public int writeVirtualMemory(int vaddr, byte[] data, int offset,
-				  int length) {//едڴ棬ȽַתΪַедڴ
-	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-
-	byte[] memory = Machine.processor().getMemory();
-	
-//	// for now, just assume that virtual addresses equal physical addresses
-//	if (vaddr < 0 || vaddr >= memory.length)
-//	    return 0;
-//
-//	int amount = Math.min(length, memory.length-vaddr);
-//	System.arraycopy(data, offset, memory, vaddr, amount);
-//
-//	return amount;
-	
-	
-if (vaddr < 0 || vaddr +length-1>Processor.makeAddress(numPages-1, pageSize-1)){
-	Lib.debug(dbgProcess, "writeMemory:Invalid virtual address");
-	return 0;
-}
+				  int length) {//едڴ棬ֻҳЧҳֹͣ
+	int amount = copier.write(vaddr, data, offset, length);
 
-int transferredCounter=0;//Ѿд
-//vaddrΪдݵʼַ
-int endVAddr=vaddr+length-1;//дݵĽַ
-int startVirtualPage=Processor.pageFromAddress(vaddr);//ʼҳ
-int endVirtualPage=Processor.pageFromAddress(endVAddr);//ҳ
-for(int i=startVirtualPage;i<=endVirtualPage;i++){//ҳд
-	if(!lookUpPageTable(i).valid||lookUpPageTable(i).readOnly){//ҳֻЧ˳
-		break;
-	}
-	int pageStartVirtualAddress=Processor.makeAddress(i, 0);//ҳ濪ʼ
-	int pageEndVirtualAddress=Processor.makeAddress(i, pageSize-1);//ҳ
-	int addrOffset;//ƫƵַ
-	int amount=0;//ҳд
-	if(vaddr>pageStartVirtualAddress&&endVAddr<pageEndVirtualAddress){//ֻвһҳҪд룬ҳм
-		addrOffset=vaddr-pageStartVirtualAddress;//ƫƵַΪдݵ׵ַ-ҳĿʼַ
-		amount=length;//ҳд
-	}else if(vaddr>pageStartVirtualAddress&&endVAddr>=pageEndVirtualAddress){//дΪһҳһҳ
-		addrOffset=vaddr-pageStartVirtualAddress;//ƫƵַͬ
-		amount=pageEndVirtualAddress-vaddr+1;//дҳĩβ-дݵ׵ַ+1
-	}else if(vaddr<=pageStartVirtualAddress&&endVAddr<pageEndVirtualAddress){//дһҳǵһҳҲпǵһҳҳ׵ַд׵ַغϡ
-		addrOffset=0;//ƫƵַΪ0
-		amount=endVAddr-pageStartVirtualAddress+1;//ҳдΪдݵβַ-ҳ׵ַ+1
-	}else{//дмҳ
-		addrOffset=0;
-		amount=pageSize;
-	}
-	int paddr=
-			Processor.makeAddress(lookUpPageTable(i).ppn, addrOffset);//õҳдݵĿʼַ
-	System.arraycopy(data, offset+transferredCounter, memory, paddr, amount);//едڴ
-	transferredCounter+=amount;//Ѿд+ҳд
-}
+	if (copier.faulted())
+	    Lib.debug(dbgProcess, "writeVirtualMemory: " +
+		      Processor.exceptionNames[copier.getFaultCause()] +
+		      " at 0x" + Lib.toHexString(copier.getFaultAddress()));
 
+	return amount;
+    }
 
-return transferredCounter;//ʵд	
+    /**
+     * Transfer the remaining data in the specified buffer to this process's
+     * virtual memory, advancing the buffer's position past the bytes
+     * transferred. Unlike the other forms of <tt>writeVirtualMemory()</tt>,
+     * this allocates nothing.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	buffer	the buffer containing the data to transfer.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int writeVirtualMemory(int vaddr, ByteBuffer buffer) {
+	return copier.write(vaddr, buffer);
     }
 
     /**
@@ -473,14 +444,15 @@ numPages = 0;
      */
     private int handleHalt() {
 if(PID == 0)
-	Machine.halt();
+	Kernel.kernel.terminate();
 	
-	Lib.assertNotReached("Machine.halt() did not halt machine!");
+	Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 	return 0;
     }
     
-private void handleExit(int status){
-	parent.childrenExitStatus.put(this.PID, status);
+protected void handleExit(int status){
+	if(parent!=null)
+		parent.childrenExitStatus.put(this.PID, status);
 	coff.close();//رcoff
 	for(int i = 0;i<16;i++){//رմ򿪵ļ
 		if(descriptors[i++]!=null)
@@ -646,7 +618,7 @@ private int handleOpen(int fileAddress){//
 	}	
 }
 
-private int handleRead(int descriptor,int bufferVAddr,int size){//ļȽļед飬ٽедڴ
+private int handleRead(int descriptor,int bufferVAddr,int size){//ļļеֱӶûڵڴ
 	if(descriptor<0||descriptor>15){//ļֻ0~15
 		System.out.println("Descriptor out of range");
 		return -1;
@@ -655,6 +627,10 @@ private int handleRead(int descriptor,int bufferVAddr,int size){//
 		System.out.println("Size to read cannot be negative");
 		return -1;
 	}
+	if(bufferVAddr<0){//ַΪܶסӳ仺
+		System.out.println("Buffer address cannot be negative");
+		return -1;
+	}
 	OpenFile file;
 	if(descriptors[descriptor]==null){//ڸļ
 		System.out.println("File doesn't exist in the descriptor table");
@@ -662,20 +638,19 @@ private int handleRead(int descriptor,int bufferVAddr,int size){//
 	}else{
 		file=descriptors[descriptor];
 	}
-	int length=0;
-	byte[] reader=new byte[size];
-length=file.read(reader, 0, size);//ݴļж뵽УضȡʵʳȣúʵOpenFile
-	if(length==-1){//ȡɹ
+	int pinned=pinPages(bufferVAddr,size);//ļʱڵҳܱ
+	ByteBuffer[] slices=mapBuffer(bufferVAddr,size,true);//ûӦڴƬΣļֱӶУм
+	int count=file.read(slices,0,slices.length);//ضȡʵʳȣúʵOpenFile
+	unpinPages(bufferVAddr,pinned);
+	if(count==-1){//ȡɹ
 		System.out.println("Error occurred when try to read file");
 		return -1;
 	}
-	int count=0;
-	count=writeVirtualMemory(bufferVAddr,reader,0,length);//дڴ
 	return count;
 
 }
 
-private int handleWrite(int descriptor,int bufferVAddr,int size){//дļڴед飬ٽедļ
+private int handleWrite(int descriptor,int bufferVAddr,int size){//дļûڴеֱдļ
 	if(descriptor<0||descriptor>15){
 		Lib.debug(dbgProcess,"hanleWirte:Descriptor out of range");
 		return -1;
@@ -684,6 +659,10 @@ private int handleWrite(int descriptor,int bufferVAddr,int size){//д
 		Lib.debug(dbgProcess, "handleWrite:Size to write cannot be negative");
 		return -1;	
 	}
+	if(bufferVAddr<0){
+		Lib.debug(dbgProcess, "handleWrite:Buffer address cannot be negative");
+		return -1;
+	}
 	OpenFile file;
 	if(descriptors[descriptor]==null){
 		Lib.debug(dbgProcess, "handleWrite:File doesn't exist in the descriptor table");
@@ -691,11 +670,10 @@ private int handleWrite(int descriptor,int bufferVAddr,int size){//д
 	}else{
 		file=descriptors[descriptor];
 	}
-	int length=0;
-	byte[] writer=new byte[size];
-	length=readVirtualMemory(bufferVAddr,writer,0,size);//ڴнݴ
-	int count=0;
-	count=file.write(writer, 0, length);
+	int pinned=pinPages(bufferVAddr,size);
+	ByteBuffer[] slices=mapBuffer(bufferVAddr,size,false);//ûڴռӦڴƬΣļֱӴд룬м
+	int count=file.write(slices,0,slices.length);
+	unpinPages(bufferVAddr,pinned);
 	//System.out.println(size==count);
 	if(count==-1){
 		Lib.debug(dbgProcess, "handleWrite:Error occur when read file");
@@ -704,6 +682,15 @@ private int handleWrite(int descriptor,int bufferVAddr,int size){//д
 	return count;
 }
 
+private ByteBuffer[] mapBuffer(int bufferVAddr,int size,boolean writing){//ûӳΪڴƬΣЧҳֻӳ֮ǰĲ
+	ByteBuffer[] slices=copier.map(bufferVAddr,size,writing);
+	if(copier.faulted())
+		Lib.debug(dbgProcess, "buffer " +
+			  Processor.exceptionNames[copier.getFaultCause()] +
+			  " at 0x" + Lib.toHexString(copier.getFaultAddress()));
+	return slices;
+}
+
 private int handleClose(int descriptor){//رļ
 	if(descriptor<0||descriptor>15){
 		Lib.debug(dbgProcess, "handleClose:Descriptor out of range");
@@ -867,6 +854,8 @@ private int handleUnlink(int vaddr){//ɾ
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
+    /** Copies data to and from this process's virtual memory. */
+    protected MemoryCopier copier;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
@@ -889,5 +878,5 @@ protected OpenFile stdin;
 protected OpenFile stdout;
 private int status;
 private UThread thread;
-private static int numOfRunningProcess = 1;
+protected static int numOfRunningProcess = 0;
 }
@@ -0,0 +1,36 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A TLB replacement policy that replaces the entry that was filled longest
+ * ago.
+ */
+public class FIFOTLBPolicy extends TLBPolicy {
+    /**
+     * Allocate a new FIFO TLB replacement policy.
+     */
+    public FIFOTLBPolicy() {
+	super();
+
+	fillTimes = new long[tlbSize];
+    }
+
+    public int chooseEntry() {
+	int oldest = 0;
+	for (int i=1; i<tlbSize; i++) {
+	    if (fillTimes[i] < fillTimes[oldest])
+		oldest = i;
+	}
+
+	return oldest;
+    }
+
+    public void entryFilled(int number) {
+	fillTimes[number] = ++numFills;
+    }
+
+    /** When each entry was last filled, counting fills. */
+    private long[] fillTimes;
+    private long numFills = 0;
+}
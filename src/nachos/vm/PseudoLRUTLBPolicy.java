@@ -0,0 +1,45 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A TLB replacement policy that approximates least-recently-used with the
+ * used bits the processor sets in the TLB. Entries are examined in turn,
+ * starting after the entry replaced last, and the first one not used since
+ * the used bits were last cleared is replaced. If every entry has been used,
+ * all the used bits are cleared, and the next entry in turn is replaced.
+ */
+public class PseudoLRUTLBPolicy extends TLBPolicy {
+    /**
+     * Allocate a new pseudo-LRU TLB replacement policy.
+     */
+    public PseudoLRUTLBPolicy() {
+	super();
+    }
+
+    public int chooseEntry() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<tlbSize; i++) {
+	    int number = (hand + i) % tlbSize;
+	    if (!processor.readTLBEntry(number).used)
+		return advance(number);
+	}
+
+	for (int i=0; i<tlbSize; i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    entry.used = false;
+	    VMKernel.rewriteTLBEntry(i, entry);
+	}
+
+	return advance(hand);
+    }
+
+    private int advance(int number) {
+	hand = (number + 1) % tlbSize;
+	return number;
+    }
+
+    /** The entry to examine first. */
+    private int hand = 0;
+}
@@ -0,0 +1,19 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A TLB replacement policy that replaces an entry chosen at random.
+ */
+public class RandomTLBPolicy extends TLBPolicy {
+    /**
+     * Allocate a new random TLB replacement policy.
+     */
+    public RandomTLBPolicy() {
+	super();
+    }
+
+    public int chooseEntry() {
+	return Lib.random(tlbSize);
+    }
+}
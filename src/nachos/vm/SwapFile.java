@@ -0,0 +1,114 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+
+/**
+ * A file that holds pages evicted from main memory. The file is divided into
+ * page-sized <i>slots</i>, and grows as slots are allocated; a bitmap records
+ * which slots are in use, so that a freed slot is reused before the file
+ * grows. Pages are always read and written whole, directly to and from main
+ * memory.
+ *
+ * <p>
+ * The swap file is created on <tt>ThreadedKernel.fileSystem</tt>, under the
+ * name given by <tt>VMKernel.swapFile</tt>, and is truncated if it already
+ * exists.
+ */
+public class SwapFile {
+    /**
+     * Create a new, empty swap file.
+     */
+    public SwapFile() {
+	name = Config.getString("VMKernel.swapFile", "swap");
+
+	file = ThreadedKernel.fileSystem.open(name, true);
+	if (file == null)
+	    Lib.debug(dbgVM, "unable to create swap file " + name);
+    }
+
+    /**
+     * Allocate a slot.
+     *
+     * @return	the slot number, or -1 if there is no swap file.
+     */
+    public int allocateSlot() {
+	if (file == null)
+	    return -1;
+
+	int slot = usedSlots.nextClearBit(0);
+	usedSlots.set(slot);
+	return slot;
+    }
+
+    /**
+     * Free a slot allocated by <tt>allocateSlot()</tt>.
+     *
+     * @param	slot	the slot number.
+     */
+    public void freeSlot(int slot) {
+	Lib.assertTrue(usedSlots.get(slot));
+
+	usedSlots.clear(slot);
+    }
+
+    /**
+     * Read a page from the specified slot into the specified physical page.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to read into.
+     * @return	<tt>true</tt> if the whole page was read.
+     */
+    public boolean readPage(int slot, int ppn) {
+	Lib.assertTrue(usedSlots.get(slot));
+
+	byte[] memory = Machine.processor().getMemory();
+	if (file.read(slot*pageSize, memory, ppn*pageSize, pageSize)
+	    != pageSize)
+	    return false;
+
+	Machine.autoGrader().pageSwappedIn();
+	return true;
+    }
+
+    /**
+     * Write the specified physical page to the specified slot.
+     *
+     * @param	slot	the slot to write.
+     * @param	ppn	the physical page to write.
+     * @return	<tt>true</tt> if the whole page was written.
+     */
+    public boolean writePage(int slot, int ppn) {
+	Lib.assertTrue(usedSlots.get(slot));
+
+	byte[] memory = Machine.processor().getMemory();
+	if (file.write(slot*pageSize, memory, ppn*pageSize, pageSize)
+	    != pageSize)
+	    return false;
+
+	Machine.autoGrader().pageSwappedOut();
+	return true;
+    }
+
+    /**
+     * Close and delete the swap file.
+     */
+    public void close() {
+	if (file == null)
+	    return;
+
+	file.close();
+	file = null;
+
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    private String name;
+    private OpenFile file;
+    private BitSet usedSlots = new BitSet();
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
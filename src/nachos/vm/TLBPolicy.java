@@ -0,0 +1,43 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Chooses which TLB entry to replace when a translation must be loaded into
+ * a TLB with no invalid entries. <tt>VMKernel</tt> uses the policy named by
+ * <tt>VMKernel.tlbPolicy</tt>.
+ */
+public abstract class TLBPolicy {
+    /**
+     * Allocate a new TLB replacement policy.
+     */
+    public TLBPolicy() {
+	tlbSize = Machine.processor().getTLBSize();
+    }
+
+    /**
+     * Choose a TLB entry to replace. Called only when every entry is valid.
+     * The used and dirty bits of every entry have already been copied to the
+     * page table, so the policy may clear the used bits in the TLB.
+     *
+     * @return	the index of the entry to replace.
+     */
+    public abstract int chooseEntry();
+
+    /**
+     * Notify this policy that the specified TLB entry was just filled.
+     *
+     * @param	number	the index of the entry.
+     */
+    public void entryFilled(int number) {
+    }
+
+    /**
+     * Notify this policy that every TLB entry was just invalidated.
+     */
+    public void flushed() {
+    }
+
+    /** The number of entries in the TLB. */
+    protected int tlbSize;
+}
@@ -7,6 +7,36 @@ import nachos.vm.*;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * Physical memory is shared by all processes through a global inverted page
+ * table, with one entry for each physical page, recording which page of
+ * which process occupies it. Free physical pages are kept in
+ * <tt>UserKernel.availablePages</tt>, and all paging is done holding
+ * <tt>UserKernel.allocateMemoryLock</tt>.
+ *
+ * <p>
+ * When there are no free physical pages, a page is evicted to make room,
+ * chosen by the clock algorithm: a hand sweeps over the physical pages, and
+ * a page that has been used since the hand last passed it has its used bit
+ * cleared and gets a second chance, while an unused page is evicted. A page
+ * that has been written since it was loaded is written to the swap file
+ * first; a clean page is simply dropped, since it can be loaded again from
+ * the executable or the swap file, or is still all zeroes.
+ *
+ * <p>
+ * TLB misses are handled by the process that missed. When the TLB is full,
+ * the entry to replace is chosen by the <tt>TLBPolicy</tt> named by
+ * <tt>VMKernel.tlbPolicy</tt>. If <tt>VMKernel.printTLBStats</tt> is set,
+ * each process prints its TLB hit rate when it exits, and the totals are
+ * printed when the machine halts.
+ *
+ * <p>
+ * If the processor has a tagged TLB, each process is given an ASID the first
+ * time it runs, and keeps it until it exits, so its TLB entries survive
+ * context switches. When every ASID is taken, one is taken back from another
+ * process in turn, and that process's entries are removed from the TLB; it
+ * gets a new ASID the next time it runs.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,11 +51,32 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+
+	frames = new Frame[numPhysPages];
+	for (int i=0; i<numPhysPages; i++)
+	    frames[i] = new Frame();
+
+	swap = new SwapFile();
+
+	tlbPolicy = (TLBPolicy) Lib.constructObject(
+	    Config.getString("VMKernel.tlbPolicy", "nachos.vm.FIFOTLBPolicy"));
+
+	if (Machine.processor().hasTaggedTLB())
+	    asidOwners = new VMProcess[Processor.numASIDs];
+
+	printTLBStats = Config.getBoolean("VMKernel.printTLBStats", false);
+	if (printTLBStats) {
+	    Machine.addHaltHandler(new Runnable() {
+		    public void run() { printTLBTotals(); }
+		});
+	}
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
@@ -36,14 +87,265 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	// other processes may still be running; keep them from paging
+	allocateMemoryLock.acquire();
+	swap.close();
+
 	super.terminate();
     }
 
+    /**
+     * Allocate a physical page for the specified page of the specified
+     * process, evicting another page if there are no free pages. The caller
+     * must hold <tt>allocateMemoryLock</tt>, and must load the page.
+     *
+     * @param	process	the process the page belongs to.
+     * @param	vpn	the virtual page number of the page.
+     * @return	the physical page number, or -1 if every page is in use and
+     *		none can be evicted, or the victim could not be swapped out.
+     */
+    static int allocateFrame(VMProcess process, int vpn) {
+	Lib.assertTrue(allocateMemoryLock.isHeldByCurrentThread());
+
+	int ppn;
+
+	if (!availablePages.isEmpty()) {
+	    ppn = availablePages.removeFirst();
+	}
+	else {
+	    ppn = chooseVictim();
+	    if (ppn == -1) {
+		Lib.debug(dbgVM, "no page can be evicted");
+		return -1;
+	    }
+
+	    Frame victim = frames[ppn];
+	    Lib.debug(dbgVM, "evicting page " + victim.vpn + " from ppn "
+		      + ppn);
+	    if (!victim.process.evict(victim.vpn)) {
+		Lib.debug(dbgVM, "unable to swap out page " + victim.vpn);
+		return -1;
+	    }
+	}
+
+	frames[ppn].process = process;
+	frames[ppn].vpn = vpn;
+	return ppn;
+    }
+
+    /**
+     * Return a physical page to the free list.
+     *
+     * @param	ppn	the physical page number.
+     */
+    static void freeFrame(int ppn) {
+	Lib.assertTrue(allocateMemoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(frames[ppn].pinCount == 0);
+
+	frames[ppn].process = null;
+	availablePages.add(ppn);
+    }
+
+    /**
+     * Prevent the specified physical page from being evicted until it is
+     * unpinned. Pins nest.
+     *
+     * @param	ppn	the physical page number.
+     */
+    static void pin(int ppn) {
+	Lib.assertTrue(allocateMemoryLock.isHeldByCurrentThread());
+
+	frames[ppn].pinCount++;
+    }
+
+    /**
+     * Undo one call to <tt>pin()</tt>.
+     *
+     * @param	ppn	the physical page number.
+     */
+    static void unpin(int ppn) {
+	Lib.assertTrue(allocateMemoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(frames[ppn].pinCount > 0);
+
+	frames[ppn].pinCount--;
+    }
+
+    /**
+     * Advance the clock hand to the first unpinned page that has not been
+     * used since the hand last passed it, clearing the used bits of the pages
+     * passed over.
+     *
+     * @return	the physical page number of the victim, or -1 if every page
+     *		is pinned.
+     */
+    private static int chooseVictim() {
+	// used bits may still be in the TLB
+	syncTLB();
+
+	// after one sweep every used bit is clear
+	for (int i=0; i<2*frames.length; i++) {
+	    int ppn = victimHand;
+	    victimHand = (victimHand + 1) % frames.length;
+
+	    Frame frame = frames[ppn];
+	    if (frame.process != null && frame.pinCount == 0 &&
+		!frame.process.clearUsed(frame.vpn))
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the process whose translation the specified TLB entry holds:
+     * the owner of the entry's ASID if the TLB is tagged, or else the current
+     * process.
+     *
+     * @param	number	the index into the TLB.
+     * @return	the process, or <tt>null</tt> if there is none.
+     */
+    static VMProcess tlbOwner(int number) {
+	Processor processor = Machine.processor();
+	if (processor.hasTaggedTLB())
+	    return asidOwners[processor.getTLBEntryASID(number)];
+
+	UserProcess current = currentProcess();
+	return (current instanceof VMProcess) ? (VMProcess) current : null;
+    }
+
+    /**
+     * Change the contents of the specified TLB entry without changing the
+     * process it belongs to.
+     *
+     * @param	number	the index into the TLB.
+     * @param	entry	the new contents of the entry.
+     */
+    static void rewriteTLBEntry(int number, TranslationEntry entry) {
+	Processor processor = Machine.processor();
+	if (processor.hasTaggedTLB())
+	    processor.writeTLBEntry(number, entry,
+				    processor.getTLBEntryASID(number));
+	else
+	    processor.writeTLBEntry(number, entry);
+    }
+
+    /**
+     * Copy the used and dirty bits of every valid TLB entry back to the page
+     * table of the process it belongs to.
+     */
+    static void syncTLB() {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    VMProcess owner = tlbOwner(i);
+	    if (entry.valid && owner != null)
+		owner.syncEntry(entry);
+	}
+    }
+
+    /**
+     * Give the specified process an ASID, taking one from another process if
+     * every ASID is taken. Called with interrupts disabled.
+     *
+     * @param	process	the process that needs an ASID.
+     * @return	the ASID.
+     */
+    static int allocateASID(VMProcess process) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	int asid = asidHand;
+	for (int i=0; i<asidOwners.length; i++) {
+	    if (asidOwners[(asidHand + i) % asidOwners.length] == null) {
+		asid = (asidHand + i) % asidOwners.length;
+		break;
+	    }
+	}
+	asidHand = (asid + 1) % asidOwners.length;
+
+	VMProcess victim = asidOwners[asid];
+	if (victim != null) {
+	    Lib.debug(dbgVM, "taking ASID " + asid + " for a new process");
+	    freeASID(asid);
+	    victim.lostASID();
+	}
+
+	asidOwners[asid] = process;
+	return asid;
+    }
+
+    /**
+     * Take back an ASID, first removing its entries from the TLB. Called with
+     * interrupts disabled.
+     *
+     * @param	asid	the ASID.
+     */
+    static void freeASID(int asid) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (entry.valid && processor.getTLBEntryASID(i) == asid) {
+		asidOwners[asid].syncEntry(entry);
+		processor.writeTLBEntry(i, new TranslationEntry());
+	    }
+	}
+
+	asidOwners[asid] = null;
+    }
+
+    /**
+     * Print the TLB hit rate of every process that has run, under the name
+     * of the replacement policy.
+     */
+    private static void printTLBTotals() {
+	long hits = Machine.processor().getTLBHits();
+
+	System.out.println(tlbPolicy.getClass().getName() + ": "
+			   + VMProcess.formatTLBStats(hits, totalTLBMisses));
+    }
+
+    /**
+     * An entry in the inverted page table.
+     */
+    private static class Frame {
+	/** The process whose page this is, or <tt>null</tt> if free. */
+	VMProcess process = null;
+	/** The virtual page number of the page in its process. */
+	int vpn;
+	/** The number of times the page has been pinned. */
+	int pinCount = 0;
+    }
+
+    /** The inverted page table, indexed by physical page number. */
+    private static Frame[] frames;
+    /** The next physical page to consider for eviction. */
+    private static int victimHand = 0;
+
+    /** The file evicted pages are written to. */
+    static SwapFile swap;
+
+    /** The policy that chooses which TLB entry to replace. */
+    static TLBPolicy tlbPolicy;
+    /** <tt>true</tt> if TLB hit rates should be printed. */
+    static boolean printTLBStats;
+    /** The number of TLB misses handled for all processes. */
+    static long totalTLBMisses = 0;
+
+    /** The process each ASID belongs to, if the TLB is tagged. */
+    private static VMProcess[] asidOwners;
+    /** The next ASID to give out. */
+    private static int asidHand = 0;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
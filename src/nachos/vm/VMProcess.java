@@ -5,8 +5,20 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No physical memory is allocated when the process is loaded. Every page
+ * starts out invalid, and is loaded the first time it is used, either by the
+ * program, through a page fault or TLB miss, or by the kernel, through
+ * <tt>lookUpPageTable()</tt>. A page of a COFF section is read from the
+ * executable; any other page, of the stack or the arguments, is filled with
+ * zeroes. A page that was written before being evicted is kept in the swap
+ * file, in a slot that belongs to the process until it exits, and is read
+ * back from there.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -18,18 +30,44 @@ public class VMProcess extends UserProcess {
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. Copies the used and dirty bits
+     * of the TLB entries back to the page table, and invalidates them unless
+     * the TLB is tagged.
      */
     public void saveState() {
 	super.saveState();
+
+	countTLBHits();
+
+	if (Machine.processor().hasTaggedTLB())
+	    syncTLB();
+	else
+	    flushTLB();
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. With a TLB, there is nothing to
+     * restore: either the TLB was flushed when this process was switched
+     * out, or it is tagged, and this process's ASID only has to be put back
+     * in the ASID register.
      */
     public void restoreState() {
-	super.restoreState();
+	Processor processor = Machine.processor();
+
+	if (!processor.hasTLB()) {
+	    super.restoreState();
+	    return;
+	}
+
+	tlbHitsBefore = processor.getTLBHits();
+
+	if (processor.hasTaggedTLB()) {
+	    if (asid == -1)
+		asid = VMKernel.allocateASID(this);
+
+	    processor.setASID(asid);
+	}
     }
 
     /**
@@ -39,15 +77,148 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, 0, false, false,
+						  false, false);
+
+	pageSections = new CoffSection[numPages];
+	sectionPages = new int[numPages];
+
+	swapSlots = new int[numPages];
+	Arrays.fill(swapSlots, -1);
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgProcess, "\tdemand-paging " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+
+		pageTable[vpn].readOnly = section.isReadOnly();
+		pageSections[vpn] = section;
+		sectionPages[vpn] = i;
+	    }
+	}
+
+	return true;
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Release any resources allocated by <tt>loadSections()</tt>, including
+     * this process's pages in the swap file.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	UserKernel.allocateMemoryLock.acquire();
+
+	if (asid != -1) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    VMKernel.freeASID(asid);
+	    asid = -1;
+	    Machine.interrupt().restore(intStatus);
+	}
+	else if (this == UserKernel.currentProcess()) {
+	    flushTLB();
+	}
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (pageTable[vpn].valid) {
+		VMKernel.freeFrame(pageTable[vpn].ppn);
+		pageTable[vpn].valid = false;
+	    }
+
+	    if (swapSlots[vpn] != -1) {
+		VMKernel.swap.freeSlot(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+	}
+
+	UserKernel.allocateMemoryLock.release();
+    }
+
+    /**
+     * Return the page table entry for the specified page, first loading the
+     * page if it is not in memory. The entry is invalid if the page could
+     * not be loaded.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the page table entry, or <tt>null</tt> if the page is not in
+     *		this process's address space.
+     */
+    protected TranslationEntry lookUpPageTable(int vpn) {
+	TranslationEntry entry = super.lookUpPageTable(vpn);
+
+	if (entry != null && !entry.valid) {
+	    UserKernel.allocateMemoryLock.acquire();
+	    pageIn(vpn);
+	    UserKernel.allocateMemoryLock.release();
+	}
+
+	return entry;
+    }
+
+    /**
+     * Load and pin each page of the specified range, stopping at the first
+     * page that is not in this process's address space or cannot be loaded.
+     */
+    protected int pinPages(int vaddr, int length) {
+	if (vaddr < 0 || length <= 0 || pageTable == null)
+	    return 0;
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+	long lastAddress = (long) vaddr + length - 1;
+	int lastVPN = (int) Math.min(lastAddress / pageSize,
+				     pageTable.length - 1);
+
+	int count = 0;
+
+	UserKernel.allocateMemoryLock.acquire();
+
+	for (int vpn=firstVPN; vpn<=lastVPN; vpn++) {
+	    TranslationEntry entry = pageIn(vpn);
+	    if (!entry.valid)
+		break;
+
+	    VMKernel.pin(entry.ppn);
+	    count++;
+	}
+
+	UserKernel.allocateMemoryLock.release();
+
+	return count;
+    }
+
+    protected void unpinPages(int vaddr, int count) {
+	if (count == 0)
+	    return;
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+
+	UserKernel.allocateMemoryLock.acquire();
+
+	for (int i=0; i<count; i++)
+	    VMKernel.unpin(pageTable[firstVPN+i].ppn);
+
+	UserKernel.allocateMemoryLock.release();
+    }
+
+    /**
+     * Terminate this process, printing its TLB hit rate first if
+     * <tt>VMKernel.printTLBStats</tt> is set.
+     *
+     * @param	status	the exit status of the process.
+     */
+    protected void handleExit(int status) {
+	if (VMKernel.printTLBStats) {
+	    countTLBHits();
+	    System.out.println("process " + PID + ": "
+			       + formatTLBStats(tlbHits, tlbMisses));
+	}
+
+	super.handleExit(status);
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +232,323 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	case Processor.exceptionPageFault:
+	    handleFault(processor.readRegister(Processor.regBadVAddr),
+			cause == Processor.exceptionTLBMiss);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /**
+     * Handle a page fault or a TLB miss by loading the page if necessary,
+     * and, on a TLB miss, putting its translation in the TLB. Exits the
+     * process if the address is not in its address space or the page cannot
+     * be loaded.
+     *
+     * <p>
+     * A TLB miss on a page that is in memory is handled with interrupts
+     * disabled rather than under <tt>allocateMemoryLock</tt>. Waiting for the
+     * lock means a context switch, which flushes the TLB, so an instruction
+     * that needs two translations could otherwise miss forever while other
+     * processes are paging.
+     */
+    private void handleFault(int vaddr, boolean tlbMiss) {
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	if (tlbMiss) {
+	    tlbMisses++;
+	    VMKernel.totalTLBMisses++;
+
+	    // evictions cannot happen while interrupts are disabled
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    TranslationEntry entry = super.lookUpPageTable(vpn);
+	    boolean resident = (entry != null && entry.valid);
+	    if (resident)
+		refillTLB(entry);
+
+	    Machine.interrupt().restore(intStatus);
+
+	    if (resident)
+		return;
+	}
+
+	UserKernel.allocateMemoryLock.acquire();
+
+	TranslationEntry entry = pageIn(vpn);
+	// once the lock is released, the page may be evicted again
+	boolean loaded = (entry != null && entry.valid);
+	if (loaded && tlbMiss)
+	    refillTLB(entry);
+
+	UserKernel.allocateMemoryLock.release();
+
+	if (entry == null) {
+	    Lib.debug(dbgVM, "bad virtual address 0x"
+		      + Lib.toHexString(vaddr));
+	    handleExit(-1);
+	}
+	else if (!loaded) {
+	    Lib.debug(dbgVM, "out of memory for page " + vpn);
+	    handleExit(-1);
+	}
+    }
+
+    /**
+     * Load the specified page if it is not in memory. The caller must hold
+     * <tt>allocateMemoryLock</tt>.
+     *
+     * @return	the page table entry, which is invalid if the page could not
+     *		be loaded, or <tt>null</tt> if the page is not in this
+     *		process's address space.
+     */
+    private TranslationEntry pageIn(int vpn) {
+	TranslationEntry entry = super.lookUpPageTable(vpn);
+	if (entry == null || entry.valid)
+	    return entry;
+
+	int ppn = VMKernel.allocateFrame(this, vpn);
+	if (ppn == -1)
+	    return entry;
+
+	CoffSection section = pageSections[vpn];
+	if (swapSlots[vpn] != -1) {
+	    Lib.debug(dbgVM, "swapping in page " + vpn + " from slot "
+		      + swapSlots[vpn] + " into ppn " + ppn);
+	    if (!VMKernel.swap.readPage(swapSlots[vpn], ppn)) {
+		Lib.debug(dbgVM, "unable to swap in page " + vpn);
+		VMKernel.freeFrame(ppn);
+		return entry;
+	    }
+	}
+	else if (section != null) {
+	    Lib.debug(dbgVM, "loading page " + vpn + " of " + section.getName()
+		      + " into ppn " + ppn);
+	    section.loadPage(sectionPages[vpn], ppn);
+	}
+	else {
+	    Lib.debug(dbgVM, "zeroing page " + vpn + " in ppn " + ppn);
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	}
+
+	// the page is about to be used; don't let the clock take it right back
+	entry.ppn = ppn;
+	entry.used = true;
+	entry.dirty = false;
+	entry.valid = true;
+
+	return entry;
+    }
+
+    /**
+     * Clear the used bit of the specified page, in the TLB as well as the
+     * page table. Called by <tt>VMKernel</tt> with
+     * <tt>allocateMemoryLock</tt> held, as its clock hand passes the page.
+     *
+     * @return	<tt>true</tt> if the page had been used.
+     */
+    boolean clearUsed(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	if (!entry.used)
+	    return false;
+
+	entry.used = false;
+
+	Processor processor = Machine.processor();
+	if (processor.hasTLB()) {
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry tlbEntry = processor.readTLBEntry(i);
+		if (tlbEntry.valid && tlbEntry.vpn == vpn &&
+		    VMKernel.tlbOwner(i) == this) {
+		    tlbEntry.used = false;
+		    VMKernel.rewriteTLBEntry(i, tlbEntry);
+		}
+	    }
+	}
+
+	return true;
+    }
+
+    /**
+     * Mark the specified page as no longer in memory, first writing it to
+     * the swap file if it has been written since it was loaded. Called by
+     * <tt>VMKernel</tt> with <tt>allocateMemoryLock</tt> held, after it
+     * chooses the page for eviction.
+     *
+     * @return	<tt>true</tt> if the page was evicted, or <tt>false</tt> if it
+     *		could not be written to the swap file and is still in memory.
+     */
+    boolean evict(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	// invalidate the page before writing it, so it cannot change meanwhile
+	entry.valid = false;
+
+	// the processor may still have the translation
+	Processor processor = Machine.processor();
+	if (processor.hasTLB()) {
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry tlbEntry = processor.readTLBEntry(i);
+		if (tlbEntry.valid && tlbEntry.vpn == vpn &&
+		    VMKernel.tlbOwner(i) == this) {
+		    entry.dirty |= tlbEntry.dirty;
+		    processor.writeTLBEntry(i, new TranslationEntry());
+		}
+	    }
+	}
+
+	if (!entry.dirty)
+	    return true;
+
+	if (swapSlots[vpn] == -1)
+	    swapSlots[vpn] = VMKernel.swap.allocateSlot();
+
+	Lib.debug(dbgVM, "swapping out page " + vpn + " from ppn " + entry.ppn
+		  + " to slot " + swapSlots[vpn]);
+
+	if (swapSlots[vpn] == -1 ||
+	    !VMKernel.swap.writePage(swapSlots[vpn], entry.ppn)) {
+	    entry.valid = true;
+	    return false;
+	}
+
+	entry.dirty = false;
+	return true;
+    }
+
+    /**
+     * Copy the used and dirty bits of this process's valid TLB entries back
+     * to the page table.
+     */
+    private void syncTLB() {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && VMKernel.tlbOwner(i) == this)
+		syncEntry(tlbEntry);
+	}
+    }
+
+    /**
+     * Copy the used and dirty bits of the TLB entries back to the page
+     * table, and invalidate the TLB entries. Must only be called for the
+     * current process, and only if the TLB is not tagged.
+     */
+    private void flushTLB() {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	syncTLB();
+
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    processor.writeTLBEntry(i, new TranslationEntry());
+
+	VMKernel.tlbPolicy.flushed();
+    }
+
+    /**
+     * Put a translation in the TLB, in an invalid entry if there is one, or
+     * else replacing the entry chosen by the kernel's TLB policy.
+     */
+    private void refillTLB(TranslationEntry entry) {
+	Processor processor = Machine.processor();
+	int tlbSize = processor.getTLBSize();
+
+	int slot = -1;
+	for (int i=0; i<tlbSize; i++) {
+	    if (!processor.readTLBEntry(i).valid) {
+		slot = i;
+		break;
+	    }
+	}
+
+	if (slot == -1) {
+	    VMKernel.syncTLB();
+	    slot = VMKernel.tlbPolicy.chooseEntry();
+	}
+
+	processor.writeTLBEntry(slot, entry);
+	VMKernel.tlbPolicy.entryFilled(slot);
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry for one of this process's
+     * pages back to the page table.
+     */
+    void syncEntry(TranslationEntry tlbEntry) {
+	TranslationEntry entry = pageTable[tlbEntry.vpn];
+	Lib.assertTrue(entry.valid && entry.ppn == tlbEntry.ppn);
+
+	entry.used |= tlbEntry.used;
+	entry.dirty |= tlbEntry.dirty;
+    }
+
+    /**
+     * Forget this process's ASID, which <tt>VMKernel</tt> has given to
+     * another process. Called with interrupts disabled.
+     */
+    void lostASID() {
+	asid = -1;
+    }
+
+    /**
+     * Add the TLB hits since this process was last switched in, or last
+     * counted, to its total.
+     */
+    private void countTLBHits() {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	long hits = processor.getTLBHits();
+	tlbHits += hits - tlbHitsBefore;
+	tlbHitsBefore = hits;
+    }
+
+    /**
+     * Describe a number of TLB hits and misses, and the resulting hit rate.
+     */
+    static String formatTLBStats(long hits, long misses) {
+	long references = hits + misses;
+	double rate = (references == 0) ? 0 : 100.0 * hits / references;
+
+	return "TLB hits " + hits + ", misses " + misses + ", hit rate "
+	    + String.format("%.2f", rate) + "%";
+    }
+
+    /**
+     * The COFF section each page is loaded from, or <tt>null</tt> for a page
+     * that starts out filled with zeroes.
+     */
+    private CoffSection[] pageSections;
+    /** The page number of each page within its COFF section. */
+    private int[] sectionPages;
+    /**
+     * The swap file slot holding each page, or -1 for a page that has never
+     * been swapped out.
+     */
+    private int[] swapSlots;
+
+    /** The number of TLB hits and misses this process has had. */
+    private long tlbHits = 0, tlbMisses = 0;
+    /** The processor's TLB hit count when it was last read. */
+    private long tlbHitsBefore;
+    /** This process's ASID in a tagged TLB, or -1 if it has none. */
+    private int asid = -1;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';